@@ -9,6 +9,8 @@ import rtpProtocol.*;
 
 public class FTAClient {
 
+  private static final String GET_OUTPUT = "src/fta/output/get_F.jpg";
+
   private static RTPClient client;
 
   private static boolean corrupted;
@@ -33,11 +35,11 @@ public class FTAClient {
 
   public static void startClientPrompt (Scanner scanner) {
     Printer.promptLn("\nPlease start the client:");
-    Printer.promptLn("\tfta-client <Server IP Address>:<Server Port Number> <Window Size in Bytes >= 1000>\n");
+    Printer.promptLn("\tfta-client <Server IP Address>:<Server Port Number> <Window Size in Bytes >= 1000> [probe]\n");
 
     String command = scanner.nextLine();
     String[] args = command.split(" ");
-    boolean validCommand = (args.length == 3) &&
+    boolean validCommand = (args.length == 3 || (args.length == 4 && args[3].equalsIgnoreCase("probe"))) &&
                            args[0].equalsIgnoreCase("fta-client") &&
                            (Integer.parseInt(args[2]) >= 1000);
 
@@ -48,7 +50,8 @@ public class FTAClient {
       if (validCommand) {
         boolean started = start(serverAddressAndPort[0],
                           Integer.parseInt(serverAddressAndPort[1]),
-                          Integer.parseInt(args[2]));
+                          Integer.parseInt(args[2]),
+                          args.length == 4);
         if(started) return;
       }
     }
@@ -100,25 +103,31 @@ public class FTAClient {
   }
 
   public static boolean start (String dIP, int dPort, int window) {
+    return start(dIP, dPort, window, false);
+  }
+
+  public static boolean start (String dIP, int dPort, int window, boolean probe) {
     Printer.promptLn("Starting client...\n" +
                    "\tDestination " + dIP + ":" + dPort + "\n" +
-                   "\tWindow Size: " + window + "\n");
+                   "\tWindow Size: " + window + "\n" +
+                   "\tPath Probe: " + (probe ? "on" : "off") + "\n");
     client = new RTPClient(dIP, dPort, window);
     client.setLogging(logging);
     client.setCorrupted(corrupted);
+    client.setProbeMTU(probe);
     return client.start();
   }
 
   public static void get (String getFile) {
     Printer.promptLn("Downloading file " + getFile + "...\n");
-    byte[] data = client.get(getFile);
-    RTPUtil.createGETFile(data);
+    if(client.get(getFile, GET_OUTPUT))
+      Printer.promptLn("created file at " + GET_OUTPUT);
   }
 
   public static void getPost (String getFile, String postFile) {
     Printer.promptLn("Downloading file " + getFile + " and uploading file " + postFile + "...\n");
-    byte[] data = client.getPost(getFile, postFile);
-    RTPUtil.createGETFile(data);
+    if(client.getPost(getFile, postFile, GET_OUTPUT))
+      Printer.promptLn("created file at " + GET_OUTPUT);
   }
 
   public static void disconnect () {
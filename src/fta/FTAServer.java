@@ -23,16 +23,17 @@ public class FTAServer {
 
   public static void startServerPrompt(Scanner scanner) {
     Printer.promptLn("Please start the server:\n" +
-                   "\tfta-server <Port Number> <Window Size in Bytes >= 1000>\n");
+                   "\tfta-server <Port Number> <Window Size in Bytes >= 1000> [Shards]\n");
     String command = scanner.nextLine();
     String[] args = command.split(" ");
-    boolean validCommand = (args.length == 3) &&
+    boolean validCommand = (args.length == 3 || args.length == 4) &&
                            (args[0].equalsIgnoreCase("fta-server")) &&
                            (Integer.parseInt(args[2]) >= 1000);
 
     boolean started = false;
     if(validCommand) {
-      started = start(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+      int shards = (args.length == 4) ? Integer.parseInt(args[3]) : 1;
+      started = start(Integer.parseInt(args[1]), Integer.parseInt(args[2]), shards);
       return;
     }
     else {
@@ -43,14 +44,20 @@ public class FTAServer {
   }
 
   public static boolean start(int sPort, int window) {
+    return start(sPort, window, 1);
+  }
+
+  public static boolean start(int sPort, int window, int shards) {
     Printer.promptLn("Starting server...\n" +
                    "\tIP: " + RTPUtil.getIPAddress() + "\n" +
                    "\tPort: " + sPort + "\n" +
-                   "\tWindow Size: " + window + "\n");
+                   "\tWindow Size: " + window + "\n" +
+                   "\tShards: " + shards + "\n");
 
     server = new RTPServer(sPort, window);
+    server.setShards(shards);
     server.setLogging(logging);
     server.setCorrupted(corrupted);
-    return server.start("src/fta/input/");
+    return server.start("src/fta/input/", "src/fta/output/post_G.jpg");
   }
 }
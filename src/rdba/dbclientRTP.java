@@ -9,6 +9,7 @@ import util.*;
 public class dbclientRTP {
 
   private static final int WINDOW = 5000;
+  private static final String OUTPUT = "src/fta/output/get_F.jpg";
   private static Printer p = new Printer(false);
 
   public static void main(String[] args) throws IOException {
@@ -34,11 +35,8 @@ public class dbclientRTP {
 
       rtp.start();
 
-      byte[] data = new byte[0];
-      if (args.length == 2) data = rtp.get(args[1]);
-      else if (args.length == 3) data = rtp.getPost(args[1], args[2]);
-
-      RTPUtil.createGETFile(data);
+      if (args.length == 2) rtp.get(args[1], OUTPUT);
+      else if (args.length == 3) rtp.getPost(args[1], args[2], OUTPUT);
 
       RTPUtil.stall(5000);
       
@@ -14,14 +14,16 @@ public class dbengineRTP {
   public static void main(String[] args) throws IOException {
 
     try {
-      if (args.length != 1)
-        throw new IllegalArgumentException("Parameters: <Port>");
+      if (args.length < 1 || args.length > 2)
+        throw new IllegalArgumentException("Parameters: <Port> [Shards]");
       int serverPort = Integer.parseInt(args[0]);
+      int shards = (args.length == 2) ? Integer.parseInt(args[1]) : 1;
 
       p.statusLn("starting server from dbengineRTP");
 
       RTPServer server = new RTPServer(serverPort, WINDOW);
-      server.start("src/fta/input/");
+      server.setShards(shards);
+      server.start("src/fta/input/", "src/fta/output/post_G.jpg");
 
     } catch (IllegalArgumentException e) {
         System.out.println("\nIllegal parameters\n" + e.getMessage() + "\n");
@@ -0,0 +1,132 @@
+package rtpPacket;
+
+import java.nio.ByteBuffer;
+
+import util.*;
+
+/**
+ * HandshakeOptions are carried in the payload of SYN and SYNACK packets. A SYN
+ * advertises what its sender supports and the SYNACK answers with what the
+ * server chose. Peers that predate the options send an empty payload, and any
+ * option type a peer does not recognise is skipped.
+ *
+ * Option format: [Type (1), Length (1), Value (Length)]
+ */
+
+public class HandshakeOptions {
+
+  public static final byte STAMPS = 1;
+  public static final byte VERSION = 2;
+  public static final byte CONNECTION_ID = 3;
+  public static final byte MAX_DATAGRAM = 4;
+  public static final byte FEATURES = 5;
+
+  /**
+  * Feature bits for the FEATURES option. The SYN lists those its sender
+  * supports and the SYNACK those both peers will use; all of them need a
+  * version 2 connection.
+  */
+
+  public static final int FEATURE_SACK = 0x01;
+  public static final int FEATURE_TIMESTAMPS = 0x02;
+  public static final int SUPPORTED_FEATURES = FEATURE_SACK | FEATURE_TIMESTAMPS;
+
+  private int stamps;
+  private int version;
+  private int connId;
+  private int maxDatagram;
+  private int features;
+
+  public HandshakeOptions() {
+    this.stamps = 0;
+    this.version = RTPHeader.VERSION_1;
+    this.connId = 0;
+    this.maxDatagram = 0;
+    this.features = 0;
+  }
+
+  /**
+  * local returns the options this implementation advertises in a SYN
+  */
+
+  public static HandshakeOptions local(int maxDatagram) {
+    HandshakeOptions options = new HandshakeOptions();
+    options.setStamps(Stamp.supported());
+    options.setVersion(RTPHeader.VERSION_2);
+    options.setMaxDatagram(maxDatagram);
+    options.setFeatures(SUPPORTED_FEATURES);
+    return options;
+  }
+
+  /**
+  * Get/Set Methods
+  */
+
+  public int getStamps() { return this.stamps; }
+
+  public void setStamps(int mask) { this.stamps = mask; }
+
+  public int getVersion() { return this.version; }
+
+  public void setVersion(int v) { this.version = v; }
+
+  public int getConnectionId() { return this.connId; }
+
+  public void setConnectionId(int id) { this.connId = id; }
+
+  public int getMaxDatagram() { return this.maxDatagram; }
+
+  public void setMaxDatagram(int size) { this.maxDatagram = size; }
+
+  public int getFeatures() { return this.features; }
+
+  public void setFeatures(int mask) { this.features = mask; }
+
+  /**
+  * toBytes encodes the options that are set
+  *
+  * Parameters: -
+  * Returns: byte[]
+  */
+
+  public byte[] toBytes() {
+    ByteBuffer buff = ByteBuffer.allocate(64);
+    if(stamps != 0) buff.put(STAMPS).put((byte) 1).put((byte) stamps);
+    if(version > RTPHeader.VERSION_1) buff.put(VERSION).put((byte) 1).put((byte) version);
+    if(connId != 0) buff.put(CONNECTION_ID).put((byte) 4).putInt(connId);
+    if(maxDatagram != 0) buff.put(MAX_DATAGRAM).put((byte) 2).putShort((short) maxDatagram);
+    if(features != 0) buff.put(FEATURES).put((byte) 1).put((byte) features);
+    byte[] bytes = new byte[buff.position()];
+    buff.flip();
+    buff.get(bytes);
+    return bytes;
+  }
+
+  /**
+  * fromBytes decodes a SYN or SYNACK payload, stopping at the first
+  * truncated option.
+  *
+  * Parameters: byte[]
+  * Returns: HandshakeOptions
+  */
+
+  public static HandshakeOptions fromBytes(byte[] bytes) {
+    HandshakeOptions options = new HandshakeOptions();
+    ByteBuffer buff = ByteBuffer.wrap(bytes);
+
+    while(buff.remaining() >= 2) {
+      byte type = buff.get();
+      int length = buff.get() & 0xFF;
+      if(buff.remaining() < length) break;
+
+      int next = buff.position() + length;
+      if(type == STAMPS && length >= 1) options.setStamps(buff.get() & 0xFF);
+      else if(type == VERSION && length >= 1) options.setVersion(buff.get() & 0xFF);
+      else if(type == CONNECTION_ID && length >= 4) options.setConnectionId(buff.getInt());
+      else if(type == MAX_DATAGRAM && length >= 2) options.setMaxDatagram(buff.getShort() & 0xFFFF);
+      else if(type == FEATURES && length >= 1) options.setFeatures(buff.get() & 0xFF);
+      buff.position(next);
+    }
+    return options;
+  }
+}
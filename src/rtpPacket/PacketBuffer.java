@@ -1,27 +1,47 @@
 package rtpPacket;
 
-import java.util.*;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.TimeUnit;
 
 import util.*;
 
+/**
+ * PacketBuffer sorts received packets into one queue per State. The queues
+ * are lock-free, and consumers can either check a queue with hasX()/getX()
+ * or park in take() or poll() until a packet of the type they want arrives.
+ *
+ * A retransmission of a packet that is still waiting in its queue is
+ * dropped on arrival. Each queue keeps a concurrent set of the packets it
+ * holds, keyed by connection, sequence and ack number, so that check is
+ * constant time however deep the queue is and takes no lock. Once a packet
+ * is taken its key is forgotten, so a later retransmission is queued (and
+ * answered) again. DATA and ACKs go to switchboard handlers, so only the
+ * handshake and teardown packets pass through here.
+ */
+
 public class PacketBuffer {
 
-  ArrayList<ArrayList<RTPPacket>> queues;
-  boolean queueIsBusy;
+  /**
+  * How long, in milliseconds, a consumer watching more than one queue parks
+  * on its busiest one before checking the others
+  */
 
-  public PacketBuffer() {
-    this.queues = new ArrayList<ArrayList<RTPPacket>>();
+  public static final int POLL_INTERVAL = 10;
+
+  private final LinkedTransferQueue<RTPPacket>[] queues;
+  private final Set<Long>[] queued;
 
-    this.queues.add(State.SYN.ordinal(), new ArrayList<RTPPacket>());
-    this.queues.add(State.SYNACK.ordinal(), new ArrayList<RTPPacket>());
-    this.queues.add(State.SYNFIN.ordinal(), new ArrayList<RTPPacket>());
-    this.queues.add(State.GET.ordinal(), new ArrayList<RTPPacket>());
-    this.queues.add(State.DATA.ordinal(), new ArrayList<RTPPacket>());
-    this.queues.add(State.DATAFIN.ordinal(), new ArrayList<RTPPacket>());
-    this.queues.add(State.ACK.ordinal(), new ArrayList<RTPPacket>());
-    this.queues.add(State.FIN.ordinal(), new ArrayList<RTPPacket>());
-    this.queues.add(State.FINACK.ordinal(), new ArrayList<RTPPacket>());
-    this.queues.add(State.END.ordinal(), new ArrayList<RTPPacket>());
+  @SuppressWarnings("unchecked")
+  public PacketBuffer() {
+    State[] states = State.values();
+    this.queues = (LinkedTransferQueue<RTPPacket>[]) new LinkedTransferQueue<?>[states.length];
+    this.queued = (Set<Long>[]) new Set<?>[states.length];
+    for(State state: states) {
+      this.queues[state.ordinal()] = new LinkedTransferQueue<RTPPacket>();
+      this.queued[state.ordinal()] = ConcurrentHashMap.<Long>newKeySet();
+    }
   }
 
   //============================================================================
@@ -29,121 +49,172 @@ public class PacketBuffer {
   //============================================================================
 
   public void put(RTPPacket in) {
-    if (in.isType(State.SYN))          safePut(State.SYN, in);
-    else if (in.isType(State.SYNACK))  safePut(State.SYNACK, in);
-    else if (in.isType(State.SYNFIN))  safePut(State.SYNFIN, in);
-    else if (in.isType(State.GET))     safePut(State.GET, in);
-    else if (in.isType(State.DATA))    safePut(State.DATA, in);
-    else if (in.isType(State.DATAFIN)) safePut(State.DATAFIN, in);
-    else if (in.isType(State.ACK))     safePut(State.ACK, in);
-    else if (in.isType(State.FIN))     safePut(State.FIN, in);
-    else if (in.isType(State.FINACK))  safePut(State.FINACK, in);
-    else if (in.isType(State.END))  safePut(State.END, in);
-  }
-
-  private void safePut(State state, RTPPacket in) {
-    while(queueIsBusy) { RTPUtil.delay(); }
-    queueIsBusy = true;
-      boolean exists = queues.get(state.ordinal()).contains(in);
-      if(!exists) queues.get(state.ordinal()).add(in);
-    queueIsBusy = false;
+    int code = in.getCode();
+    if(code < 0 || code >= queues.length) return;
+
+    if(!queued[code].add(keyOf(in))) {
+      in.release();
+      return;
+    }
+    queues[code].offer(in);
+  }
+
+  private RTPPacket taken(State state, RTPPacket out) {
+    if(out != null) queued[state.ordinal()].remove(keyOf(out));
+    return out;
+  }
+
+  /**
+  * keyOf identifies a packet within its queue. ACK-type packets repeat the
+  * sender's sequence number, so the ack number is part of the key.
+  */
+
+  private static long keyOf(RTPPacket in) {
+    long connection = in.getConnectionId();
+    if(connection == 0 && in.getSource() != null)
+      connection = in.getSource().hashCode() * 31L + in.getSourcePort();
+
+    long key = ((long) in.getSeqNum() << 32) | (in.getAckNum() & 0xFFFFFFFFL);
+    return key ^ connection * 0x9E3779B97F4A7C15L;
   }
 
   //============================================================================
   // HAS METHODS
   //============================================================================
 
+  public boolean has(State state) {
+    return !queues[state.ordinal()].isEmpty();
+  }
+
   public boolean hasSYN() {
-    return !queues.get(State.SYN.ordinal()).isEmpty();
+    return has(State.SYN);
   }
 
   public boolean hasSYNACK() {
-    return !queues.get(State.SYNACK.ordinal()).isEmpty();
+    return has(State.SYNACK);
   }
 
   public boolean hasSYNFIN() {
-    return !queues.get(State.SYNFIN.ordinal()).isEmpty();
+    return has(State.SYNFIN);
   }
 
   public boolean hasGET() {
-    return !queues.get(State.GET.ordinal()).isEmpty();
+    return has(State.GET);
   }
 
   public boolean hasDATA() {
-    return !queues.get(State.DATA.ordinal()).isEmpty();
+    return has(State.DATA);
   }
 
   public boolean hasDATAFIN() {
-    return !queues.get(State.DATAFIN.ordinal()).isEmpty();
+    return has(State.DATAFIN);
   }
 
   public boolean hasACK() {
-    return !queues.get(State.ACK.ordinal()).isEmpty();
+    return has(State.ACK);
   }
 
   public boolean hasFIN() {
-    return !queues.get(State.FIN.ordinal()).isEmpty();
+    return has(State.FIN);
   }
 
   public boolean hasFINACK() {
-    return !queues.get(State.FINACK.ordinal()).isEmpty();
+    return has(State.FINACK);
   }
 
   public boolean hasEND() {
-    return !queues.get(State.END.ordinal()).isEmpty();
+    return has(State.END);
+  }
+
+  public boolean hasPROBE() {
+    return has(State.PROBE);
   }
 
   //============================================================================
   // GET METHODS
   //============================================================================
 
+  public RTPPacket get(State state) {
+    return taken(state, queues[state.ordinal()].poll());
+  }
+
   public RTPPacket getSYN() {
-    return safeGet(State.SYN);
+    return get(State.SYN);
   }
 
   public RTPPacket getSYNACK() {
-    return safeGet(State.SYNACK);
+    return get(State.SYNACK);
   }
 
   public RTPPacket getSYNFIN() {
-    return safeGet(State.SYNFIN);
+    return get(State.SYNFIN);
   }
 
   public RTPPacket getGET() {
-    return safeGet(State.GET);
+    return get(State.GET);
   }
 
   public RTPPacket getDATA() {
-    return safeGet(State.DATA);
+    return get(State.DATA);
   }
 
   public RTPPacket getDATAFIN() {
-    return safeGet(State.DATAFIN);
+    return get(State.DATAFIN);
   }
 
   public RTPPacket getACK() {
-    return safeGet(State.ACK);
+    return get(State.ACK);
   }
 
   public RTPPacket getFIN() {
-    return safeGet(State.FIN);
+    return get(State.FIN);
   }
 
   public RTPPacket getFINACK() {
-    return safeGet(State.FINACK);
+    return get(State.FINACK);
   }
 
   public RTPPacket getEND() {
-    return safeGet(State.END);
+    return get(State.END);
   }
 
-  private RTPPacket safeGet(State state) {
-    while(queueIsBusy) { RTPUtil.delay(); }
-    queueIsBusy = true;
-      RTPPacket toReturn = null;
-      if(!queues.get(state.ordinal()).isEmpty())
-        toReturn = queues.get(state.ordinal()).remove(0);
-    queueIsBusy = false;
-    return toReturn;
+  public RTPPacket getPROBE() {
+    return get(State.PROBE);
+  }
+
+  //============================================================================
+  // BLOCKING METHODS
+  //============================================================================
+
+  /**
+  * take waits for the next packet of a type
+  *
+  * Parameters: State
+  * Returns: RTPPacket, or null if the waiting thread was interrupted
+  */
+
+  public RTPPacket take(State state) {
+    try {
+      return taken(state, queues[state.ordinal()].take());
+    } catch (InterruptedException e) {
+      Printer.errorLn(e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+  * poll waits up to timeout milliseconds for the next packet of a type
+  *
+  * Parameters: State, timeout in milliseconds
+  * Returns: RTPPacket, or null if none arrived in time
+  */
+
+  public RTPPacket poll(State state, long timeout) {
+    try {
+      return taken(state, queues[state.ordinal()].poll(timeout, TimeUnit.MILLISECONDS));
+    } catch (InterruptedException e) {
+      Printer.errorLn(e.getMessage());
+      return null;
+    }
   }
 }
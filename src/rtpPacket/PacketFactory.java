@@ -2,6 +2,8 @@ package rtpPacket;
 
 import util.*;
 
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ThreadLocalRandom;
 
 public class PacketFactory {
@@ -9,7 +11,12 @@ public class PacketFactory {
   private String sIP, dIP;
   private int sPort, dPort, window, recvWindow, seqNum, ackNum;
   private boolean connected;
-  private long RTT;
+  private RTOEstimator estimator;
+  private RTPHeader template;
+  private Stamp stamp;
+  private int version, connId, features;
+  private int receiveLimit, peerLimit, pathLimit;
+  private InetSocketAddress peer;
 
   public PacketFactory(int sPort, String sIP, int window) {
     this.sPort = sPort;
@@ -20,7 +27,10 @@ public class PacketFactory {
     this.seqNum = ThreadLocalRandom.current().nextInt(0, 10000);
     this.ackNum = 0;
 
-    this.RTT = 200;
+    this.estimator = new RTOEstimator();
+    this.stamp = Stamp.ADLER32;
+    this.version = RTPHeader.VERSION_1;
+    this.receiveLimit = this.peerLimit = this.pathLimit = RTPPacket.MAX_SIZE;
   }
 
   public PacketFactory(int sPort, String sIP, int window, int recvWindow) {
@@ -32,12 +42,31 @@ public class PacketFactory {
     this.seqNum = ThreadLocalRandom.current().nextInt(0, 10000);
     this.ackNum = 0;
 
-    this.RTT = 200;
+    this.estimator = new RTOEstimator();
+    this.stamp = Stamp.ADLER32;
+    this.version = RTPHeader.VERSION_1;
+    this.receiveLimit = this.peerLimit = this.pathLimit = RTPPacket.MAX_SIZE;
   }
 
-  public long getRTT() { return this.RTT; }
+  /**
+  * getRTT returns the connection's smoothed round trip time and getRTO its
+  * retransmission timeout, both in milliseconds (see RTOEstimator)
+  */
 
-  public void setRTT(long l) { if(l != 0) this.RTT = l; }
+  public long getRTT() { return estimator.getRTT(); }
+
+  public long getRTO() { return estimator.getRTO(); }
+
+  /**
+  * sampleRTT feeds the estimator one round trip, in nanoseconds, timed on a
+  * packet that was sent only once
+  */
+
+  public void sampleRTT(long nanos) { estimator.sample(nanos); }
+
+  public RTOEstimator getEstimator() { return this.estimator; }
+
+  public int getWindow () { return this.window; }
 
   public int getRecvWindow () { return this.recvWindow; }
 
@@ -47,17 +76,142 @@ public class PacketFactory {
 
   public void setConnected (boolean conn) { this.connected = conn; }
 
+  public Stamp getStamp () { return this.stamp; }
+
+  public int getVersion () { return this.version; }
+
+  public int getConnectionId () { return this.connId; }
+
+  /**
+  * hasFeature tells whether both peers agreed to a HandshakeOptions feature
+  */
+
+  public boolean hasFeature (int feature) { return (this.features & feature) != 0; }
+
+  public int getDestPort () { return this.dPort; }
+
+  /**
+  * getPeer returns the peer's address, resolved once when the connection is
+  * set up, for handing to Mailman.send. Unresolved if the peer's name could
+  * not be looked up.
+  */
+
+  public InetSocketAddress getPeer () { return this.peer; }
+
+  /**
+  * Datagram size limits, all counting the stamp. receiveLimit is what this
+  * side advertises it can receive, peerLimit what the peer advertised (the
+  * legacy 1000 bytes for peers that advertise nothing) and pathLimit what
+  * a path probe showed gets through. Until a probe says otherwise pathLimit
+  * is SAFE_DATAGRAM, since a larger datagram is split into IP fragments and
+  * losing any one of them loses the whole segment.
+  */
+
+  public void setReceiveLimit (int limit) { this.receiveLimit = limit; }
+
+  public int getPeerLimit () { return this.peerLimit; }
+
+  public void setPathLimit (int limit) { this.pathLimit = limit; }
+
+  public int getPathLimit () { return this.pathLimit; }
+
+  /**
+  * notePathProbe raises pathLimit to the size of a probe this side sent
+  * that the peer echoed, proving datagrams that big reach it
+  */
+
+  public void notePathProbe (int datagramSize) {
+    if(datagramSize > pathLimit) this.pathLimit = datagramSize;
+  }
+
+  /**
+  * getSegmentSize returns the largest DATA payload that fits both the
+  * negotiated datagram size and the peer's receive window
+  */
+
+  public int getSegmentSize () {
+    int headerSize = getDataHeaderSize();
+    int datagram = Math.min(peerLimit, pathLimit);
+    int segment = datagram - Mailman.STAMP_SIZE - headerSize;
+    if(recvWindow > headerSize) segment = Math.min(segment, recvWindow - headerSize);
+    return Math.max(segment, 1);
+  }
+
+  /**
+  * getDataHeaderSize returns the size of a DATA packet's header on this
+  * connection
+  */
+
+  public int getDataHeaderSize () {
+    int headerSize = template.getHeaderSize();
+    if(hasFeature(HandshakeOptions.FEATURE_TIMESTAMPS)) headerSize += RTPHeader.TIMESTAMP_LENGTH;
+    return headerSize;
+  }
+
   public RTPPacket createSYN (int dPort, String dIP) {
     this.dPort = dPort;
     this.dIP = dIP;
-    return createPacket(State.SYN);
+    this.peer = new InetSocketAddress(dIP, dPort);
+    this.template = buildTemplate();
+    return createPacket(State.SYN, HandshakeOptions.local(receiveLimit).toBytes());
   }
 
-  public RTPPacket createSYNACK (RTPPacket syn) {
+  public RTPPacket createSYNACK (RTPPacket syn, int connId) {
+    this.connId = connId;
     this.dPort = syn.getSourcePort();
     this.dIP = syn.getSourceIP();
     this.ackNum = syn.getSeqNum();
-    return createACK(State.SYNACK);
+    if(syn.getSource() != null) this.peer = new InetSocketAddress(syn.getSource(), dPort);
+    else this.peer = new InetSocketAddress(dIP, dPort);
+
+    HandshakeOptions offered = HandshakeOptions.fromBytes(syn.getData());
+    HandshakeOptions chosen = new HandshakeOptions();
+    this.stamp = Stamp.choose(offered.getStamps());
+    if(offered.getStamps() != 0) chosen.setStamps(stamp.mask());
+
+    if(offered.getMaxDatagram() != 0) {
+      this.peerLimit = offered.getMaxDatagram();
+      this.pathLimit = Mailman.SAFE_DATAGRAM;
+      chosen.setMaxDatagram(receiveLimit);
+    }
+
+    if(offered.getVersion() >= RTPHeader.VERSION_2) {
+      this.version = RTPHeader.VERSION_2;
+      chosen.setVersion(version);
+      chosen.setConnectionId(connId);
+      this.features = offered.getFeatures() & HandshakeOptions.SUPPORTED_FEATURES;
+      chosen.setFeatures(features);
+    }
+
+    this.template = buildTemplate();
+    return createACK(State.SYNACK, chosen.toBytes());
+  }
+
+  /**
+  * acceptSYNACK applies the server's choices. A sharded server may answer
+  * from another port than the SYN went to; that port is used from then on.
+  */
+
+  public void acceptSYNACK (RTPPacket synack) {
+    HandshakeOptions chosen = HandshakeOptions.fromBytes(synack.getData());
+    if(synack.getSourcePort() != dPort) {
+      this.dPort = synack.getSourcePort();
+      this.peer = new InetSocketAddress(peer.getAddress(), dPort);
+    }
+    this.stamp = Stamp.choose(chosen.getStamps());
+
+    if(chosen.getMaxDatagram() != 0) {
+      this.peerLimit = chosen.getMaxDatagram();
+      this.pathLimit = Mailman.SAFE_DATAGRAM;
+    }
+
+    if(chosen.getVersion() >= RTPHeader.VERSION_2 && chosen.getConnectionId() != 0) {
+      this.version = RTPHeader.VERSION_2;
+      this.connId = chosen.getConnectionId();
+      this.features = chosen.getFeatures() & HandshakeOptions.SUPPORTED_FEATURES;
+    }
+
+    this.template = buildTemplate();
   }
 
   public RTPPacket createSYNFIN (long time) {
@@ -68,16 +222,35 @@ public class PacketFactory {
     return createPacket(State.GET, filename);
   }
 
-  public RTPPacket[] packageBytes(byte[] data) {
-    byte[][] bytes = RTPUtil.splitData(data);
-    RTPPacket[] toReturn = new RTPPacket[bytes.length];
-    for (int i = 0; i < bytes.length; i++)
-      toReturn[i] = createPacket(State.DATA, bytes[i]);
-    return toReturn;
+  public SegmentSource createSegments (Payload data) {
+    return new SegmentSource(this, data, getSegmentSize());
+  }
+
+  /**
+  * On version 2 connections a DATA packet's sequence number is the offset of
+  * its payload within the transfer and the DATAFIN carries the transfer's
+  * length, so the receiver can write each segment straight to its place in
+  * the output file. Offsets are 64-bit: the header carries their low 32 bits
+  * (see Serial) and the DATAFIN carries the whole length as its payload.
+  * Version 1 peers keep the running sequence number.
+  */
+
+  synchronized RTPPacket createDATA (ByteBuffer payload, long offset) {
+    RTPHeader header = createHeader(State.DATA);
+    header.setDataSize(payload.remaining());
+    RTPPacket toSend = new RTPPacket(header, payload);
+    toSend.setStamp(stamp);
+    if(version >= RTPHeader.VERSION_2) header.setSeqNum((int) offset);
+    else this.seqNum += header.getPacketSize();
+    return toSend;
   }
 
-  public RTPPacket createDATAFIN () {
-    return createPacket(State.DATAFIN);
+  public RTPPacket createDATAFIN (long length) {
+    if(version < RTPHeader.VERSION_2) return createPacket(State.DATAFIN);
+
+    RTPPacket toSend = createACK(State.DATAFIN, RTPUtil.longToByte(length));
+    toSend.setSeqNum((int) length);
+    return toSend;
   }
 
   public RTPPacket createACK (RTPPacket in) {
@@ -85,6 +258,42 @@ public class PacketFactory {
     return createACK(State.ACK);
   }
 
+  /**
+  * createSACK acknowledges DATA on a connection using SACK. The ack
+  * number is the cumulative point, the first offset not yet received, and the
+  * payload echoes the DATA packet's sequence number before listing up to
+  * blocks.length / 2 received ranges beyond that point.
+  *
+  * SACK payload format: [Echoed Sequence Number (4),
+  *                       (Range Start (4), Range End (4)) repeated]
+  *
+  * Parameters: sequence number of the DATA packet acknowledged, cumulative
+  *             point, start/end pairs, number of pairs
+  * Returns: RTPPacket
+  */
+
+  public RTPPacket createSACK (int echoed, long cumulative, long[] blocks, int count) {
+    ByteBuffer buff = ByteBuffer.allocate(Integer.BYTES * (1 + 2 * count));
+    buff.putInt(echoed);
+    for(int i = 0; i < count; i++)
+      buff.putInt((int) blocks[2 * i]).putInt((int) blocks[2 * i + 1]);
+
+    RTPPacket toSend = createACK(State.ACK, (int) cumulative, buff.array());
+    RTPHeader header = toSend.getPacketHeader();
+    header.setFlags(header.getFlags() | RTPHeader.FLAG_SACK);
+    return toSend;
+  }
+
+  public RTPPacket createPROBE (int datagramSize) {
+    int size = Math.max(datagramSize - Mailman.STAMP_SIZE - template.getHeaderSize(), 0);
+    return createPacket(State.PROBE, new byte[size]);
+  }
+
+  public RTPPacket createPROBEACK (RTPPacket probe) {
+    this.ackNum = probe.getSeqNum();
+    return createACK(State.PROBE);
+  }
+
   public RTPPacket createFIN () {
     return createPacket(State.FIN);
   }
@@ -98,19 +307,39 @@ public class PacketFactory {
     return createPacket(State.END);
   }
 
+  private RTPHeader buildTemplate () {
+    RTPHeader header = new RTPHeader(0, window, 0, 0, 0, sPort, dPort, sIP, dIP);
+    header.setVersion(version);
+    header.setConnectionId(connId);
+    return header;
+  }
+
+  private RTPHeader createHeader (State code) {
+    return new RTPHeader(template, window, code.ordinal(), seqNum, ackNum);
+  }
+
   private RTPPacket createPacket (State code) {
-    RTPPacket toSend = new RTPPacket(window, code.ordinal(), seqNum, ackNum, sPort, dPort, sIP, dIP);
-    this.seqNum += toSend.getPacketHeader().getPacketSize();
-    return toSend;
+    return createPacket(code, RTPPacket.EMPTY);
   }
 
   private RTPPacket createACK (State code) {
-    RTPPacket toSend = new RTPPacket(window, code.ordinal(), seqNum, ackNum, sPort, dPort, sIP, dIP);
+    return createACK(code, RTPPacket.EMPTY);
+  }
+
+  private synchronized RTPPacket createACK (State code, int ackNum, byte[] data) {
+    this.ackNum = ackNum;
+    return createACK(code, data);
+  }
+
+  private synchronized RTPPacket createACK (State code, byte[] data) {
+    RTPPacket toSend = new RTPPacket(createHeader(code), data);
+    toSend.setStamp(stamp);
     return toSend;
   }
 
-  private RTPPacket createPacket (State code, byte[] data) {
-    RTPPacket toSend = new RTPPacket(window, code.ordinal(), seqNum, ackNum, sPort, dPort, sIP, dIP, data);
+  private synchronized RTPPacket createPacket (State code, byte[] data) {
+    RTPPacket toSend = new RTPPacket(createHeader(code), data);
+    toSend.setStamp(stamp);
     this.seqNum += toSend.getPacketHeader().getPacketSize();
     return toSend;
   }
@@ -0,0 +1,38 @@
+package rtpPacket;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * PacketPool is a bounded free list of receive packets, each owning a frame
+ * big enough for one datagram. acquire() reuses a released packet when one
+ * is free and only allocates when the pool has run dry; release() keeps at
+ * most capacity packets and lets the rest be collected.
+ */
+
+public class PacketPool {
+
+  private final ArrayBlockingQueue<RTPPacket> free;
+  private final int frameSize;
+  private volatile long created;
+
+  public PacketPool(int capacity, int frameSize) {
+    this.free = new ArrayBlockingQueue<RTPPacket>(capacity);
+    this.frameSize = frameSize;
+    this.created = 0;
+  }
+
+  public RTPPacket acquire() {
+    RTPPacket packet = free.poll();
+    if(packet != null) return packet;
+    created++;
+    return new RTPPacket(this, frameSize);
+  }
+
+  void release(RTPPacket packet) {
+    free.offer(packet);
+  }
+
+  public int getFrameSize() { return this.frameSize; }
+
+  public long getCreated() { return this.created; }
+}
@@ -7,43 +7,74 @@ package rtpPacket;
  * RTPHeader creates a useful class for encoding and decoding byte arrays
  * that contain header information.
  *
- * Header format: [Header Size (1), Packet Size (2), Data Size (2), Window Size (4), Code (1),
+ * Version 1 header format: [Header Size (1), Packet Size (2), Data Size (2), Window Size (4), Code (1),
  *                Sequence Number (4), Ack Number (4), Source Port (4),
  *                Destination Port (4), Source IP Length (1), Dest IP Length (1),
  *                SourceIP (varies), DestinationIP (varies)]
  *
  * Total length of header = 28 + SIP length + DIP length
  *
+ * Version 2 header format: [Version (1), Code (1), Flags (1), Header Size (1),
+ *                Data Size (2), Source Port (2), Destination Port (2), Reserved (2),
+ *                Window Size (4), Connection ID (4), Sequence Number (4), Ack Number (4)]
+ *
+ * Total length of header = 28, always. The first byte of a version 1 header is
+ * its size, which is never below 28, so a leading 2 identifies version 2. IPs
+ * are not sent: the receiver takes the peer address from the datagram.
+ * Version 2 is only used once both peers agreed to it in the SYN/SYNACK.
+ *
+ * Version 2 flags: SACK (0x01) marks an ACK whose ack number is cumulative
+ * and whose payload lists selectively acknowledged ranges (see RTPService).
+ * TIMESTAMP (0x02) marks a header that goes on with a Timestamp Value (4)
+ * and a Timestamp Echo (4), for 36 bytes in all: DATA carries its sender's
+ * clock and the ACK answering it echoes that value back, so each ACK times
+ * a round trip exactly, retransmissions included.
+ *
  */
 
 import java.nio.ByteBuffer;
-import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
 
 import util.*;
 
 public class RTPHeader {
 
   public static final int BASE_LENGTH = 28;
+  public static final int FIXED_LENGTH = 28;
+
+  public static final int VERSION_1 = 1;
+  public static final int VERSION_2 = 2;
+
+  public static final int FLAG_SACK = 0x01;
+  public static final int FLAG_TIMESTAMP = 0x02;
+  public static final int TIMESTAMP_LENGTH = 8;
 
   private long checksum;
-  private byte headerSize;
-  private short packetSize;
-  private short dataSize;
+  private int version;
+  private int flags;
+  private int connId;
+  private int headerSize;
+  private int packetSize;
+  private int dataSize;
   private int windowSize;
   private byte code;
   private int seqNum;
   private int ackNum;
+  private int tsVal;
+  private int tsEcr;
   private int sPort;
   private int dPort;
   private String sIP;
   private String dIP;
+  private byte[] addressBlock;
 
   /**
   * Constructors
   */
 
   public RTPHeader() {
-    this.headerSize = (byte) BASE_LENGTH;
+    this.version = VERSION_1;
+    this.headerSize = BASE_LENGTH;
     this.packetSize = 0;
     this.dataSize = 0;
     this.windowSize = 0;
@@ -58,9 +89,10 @@ public class RTPHeader {
 
   public RTPHeader(int dataSize, int windowSize, int code, int seqNum, int ackNum,
                     int sPort, int dPort, String sIP, String dIP) {
-    this.headerSize = (byte) (BASE_LENGTH + sIP.getBytes().length + dIP.getBytes().length);
-    this.packetSize = (short) (this.headerSize + dataSize);
-    this.dataSize = (short) dataSize;
+    this.version = VERSION_1;
+    this.headerSize = BASE_LENGTH + sIP.getBytes().length + dIP.getBytes().length;
+    this.packetSize = this.headerSize + dataSize;
+    this.dataSize = dataSize;
     this.windowSize = windowSize;
     this.code = (byte) code;
     this.seqNum = seqNum;
@@ -71,15 +103,45 @@ public class RTPHeader {
     this.dIP = dIP;
   }
 
+  /**
+  * Template constructor: copies the connection-constant fields of template
+  * and shares its pre-encoded address block, so packets built from the same
+  * template never re-encode ports or IPs.
+  */
+
+  public RTPHeader(RTPHeader template, int windowSize, int code, int seqNum, int ackNum) {
+    this.version = template.version;
+    this.flags = template.flags;
+    this.connId = template.connId;
+    this.headerSize = template.headerSize;
+    this.packetSize = template.headerSize;
+    this.dataSize = 0;
+    this.windowSize = windowSize;
+    this.code = (byte) code;
+    this.seqNum = seqNum;
+    this.ackNum = ackNum;
+    this.sPort = template.sPort;
+    this.dPort = template.dPort;
+    this.sIP = template.sIP;
+    this.dIP = template.dIP;
+    if(version == VERSION_1) this.addressBlock = template.getAddressBlock();
+  }
+
   /**
   * Get Methods
   */
 
-  public int getHeaderSize() { return (int) this.headerSize; }
+  public int getVersion() { return this.version; }
+
+  public int getFlags() { return this.flags; }
 
-  public int getPacketSize() { return (int) this.packetSize; }
+  public int getConnectionId() { return this.connId; }
 
-  public int getDataSize() { return (int) this.dataSize; }
+  public int getHeaderSize() { return this.headerSize; }
+
+  public int getPacketSize() { return this.packetSize; }
+
+  public int getDataSize() { return this.dataSize; }
 
   public int getWindowSize() { return this.windowSize; }
 
@@ -89,6 +151,10 @@ public class RTPHeader {
 
   public int getAckNum() { return (int) this.ackNum; }
 
+  public int getTimestamp() { return this.tsVal; }
+
+  public int getTimestampEcho() { return this.tsEcr; }
+
   public int getSourcePort() { return this.sPort; }
 
   public int getDestPort() { return this.dPort; }
@@ -101,9 +167,36 @@ public class RTPHeader {
   * Set Methods
   */
 
+  public void setVersion(int v) {
+    this.version = v;
+    if(v == VERSION_2) this.headerSize = FIXED_LENGTH;
+    else this.headerSize = BASE_LENGTH + sIP.getBytes().length + dIP.getBytes().length;
+    this.packetSize = this.headerSize + this.dataSize;
+  }
+
+  public void setConnectionId(int id) { this.connId = id; }
+
+  public void setFlags(int f) { this.flags = f; }
+
+  /**
+  * setTimestamps adds the timestamp fields to a version 2 header
+  *
+  * Parameters: this side's clock, the peer's clock value being echoed
+  * Returns: -
+  */
+
+  public void setTimestamps(int value, int echo) {
+    if(version != VERSION_2) return;
+    this.flags |= FLAG_TIMESTAMP;
+    this.headerSize = FIXED_LENGTH + TIMESTAMP_LENGTH;
+    this.packetSize = this.headerSize + this.dataSize;
+    this.tsVal = value;
+    this.tsEcr = echo;
+  }
+
   public void setDataSize(int s) {
-    this.packetSize = (short) (this.headerSize + s);
-    this.dataSize = (short) s;
+    this.packetSize = this.headerSize + s;
+    this.dataSize = s;
   }
 
   public void setWindowSize(int w) { this.windowSize = w; }
@@ -114,22 +207,34 @@ public class RTPHeader {
 
   public void setAckNum(int a) { this.ackNum = a; }
 
-  public void setSourcePort(int s) { this.sPort = s; }
+  public void setSourcePort(int s) {
+    this.sPort = s;
+    this.addressBlock = null;
+  }
 
-  public void setDestPort(int d) { this.dPort = d; }
+  public void setDestPort(int d) {
+    this.dPort = d;
+    this.addressBlock = null;
+  }
 
   public void setSourceIP(String s) {
     int diff = s.getBytes().length - this.sIP.getBytes().length;
-    this.headerSize += diff;
-    this.packetSize += diff;
+    if(version == VERSION_1) {
+      this.headerSize += diff;
+      this.packetSize += diff;
+    }
     this.sIP = s;
+    this.addressBlock = null;
   }
 
   public void setDestIP(String d) {
-    short diff = (byte) (d.getBytes().length - this.dIP.getBytes().length);
-    this.headerSize += diff;
-    this.packetSize += diff;
+    int diff = d.getBytes().length - this.dIP.getBytes().length;
+    if(version == VERSION_1) {
+      this.headerSize += diff;
+      this.packetSize += diff;
+    }
     this.dIP = d;
+    this.addressBlock = null;
   }
 
 
@@ -138,7 +243,11 @@ public class RTPHeader {
   */
 
   public boolean isType(State s) {
-    return s.ordinal() == (int) this.code;
+    return s.ordinal() == getCode();
+  }
+
+  public boolean hasFlag(int flag) {
+    return (getFlags() & flag) != 0;
   }
 
   /**
@@ -149,19 +258,64 @@ public class RTPHeader {
   */
 
   public byte[] toBytes() {
-    byte[] sArray = sIP.getBytes();
-    byte[] dArray = dIP.getBytes();
+    byte[] b = new byte[getHeaderSize()];
+    writeTo(ByteBuffer.wrap(b));
+    return b;
+  }
 
-    ByteBuffer buff = ByteBuffer.allocate(headerSize);
+  /**
+  * writeTo encodes the header at the buffer's position without allocating
+  *
+  * Parameters: ByteBuffer
+  * Returns: -
+  */
+
+  public void writeTo(ByteBuffer buff) {
+    if(version == VERSION_2) {
+      buff
+        .put((byte) VERSION_2)
+        .put(code)
+        .put((byte) flags)
+        .put((byte) headerSize)
+        .putShort((short) dataSize)
+        .putShort((short) sPort)
+        .putShort((short) dPort)
+        .putShort((short) 0)
+        .putInt(windowSize)
+        .putInt(connId)
+        .putInt(seqNum)
+        .putInt(ackNum);
+      if((flags & FLAG_TIMESTAMP) != 0) buff.putInt(tsVal).putInt(tsEcr);
+      return;
+    }
 
     buff
-      .put(headerSize)
-      .putShort(packetSize)
-      .putShort(dataSize)
+      .put((byte) headerSize)
+      .putShort((short) packetSize)
+      .putShort((short) dataSize)
       .putInt(windowSize)
       .put(code)
       .putInt(seqNum)
       .putInt(ackNum)
+      .put(getAddressBlock());
+  }
+
+  /**
+  * getAddressBlock returns the connection-constant tail of the header
+  * (ports, IP lengths and IPs), encoding it on first use.
+  *
+  * Parameters: -
+  * Returns: byte[]
+  */
+
+  private byte[] getAddressBlock() {
+    if(addressBlock != null) return addressBlock;
+
+    byte[] sArray = sIP.getBytes();
+    byte[] dArray = dIP.getBytes();
+
+    ByteBuffer buff = ByteBuffer.allocate(10 + sArray.length + dArray.length);
+    buff
       .putInt(sPort)
       .putInt(dPort)
       .put((byte) sArray.length)
@@ -169,11 +323,8 @@ public class RTPHeader {
       .put(sArray)
       .put(dArray);
 
-    buff.flip();
-    byte[] b = new byte[buff.remaining()];
-    buff.get(b);
-    return b;
-
+    this.addressBlock = buff.array();
+    return addressBlock;
   }
 
   /**
@@ -191,6 +342,30 @@ public class RTPHeader {
 
     try {
       ByteBuffer buff = ByteBuffer.wrap(packet);
+
+      if(packet[0] == VERSION_2) {
+        this.version = VERSION_2;
+        buff.get();
+        this.code = buff.get();
+        this.flags = buff.get() & 0xFF;
+        this.headerSize = buff.get() & 0xFF;
+        this.dataSize = buff.getShort() & 0xFFFF;
+        this.packetSize = this.headerSize + this.dataSize;
+        this.sPort = buff.getShort() & 0xFFFF;
+        this.dPort = buff.getShort() & 0xFFFF;
+        buff.getShort();
+        this.windowSize = buff.getInt();
+        this.connId = buff.getInt();
+        this.seqNum = buff.getInt();
+        this.ackNum = buff.getInt();
+        if((flags & FLAG_TIMESTAMP) != 0) {
+          this.tsVal = buff.getInt();
+          this.tsEcr = buff.getInt();
+        }
+        return;
+      }
+
+      this.version = VERSION_1;
       this.headerSize = buff.get();
       this.packetSize = buff.getShort();
       this.dataSize = buff.getShort();
@@ -212,7 +387,9 @@ public class RTPHeader {
       bytes = new byte[dLength];
       buff.get(bytes);
       this.dIP = new String(bytes);
-   } catch (BufferOverflowException e) {
+
+      this.addressBlock = null;
+   } catch (BufferUnderflowException e) {
        Printer.errorLn("------------header size corrupted, disposing---------------");
    }
   }
@@ -222,17 +399,19 @@ public class RTPHeader {
   */
 
   public String toString() {
-    return "Header Size (1): " + this.headerSize + "\n" +
-           "Packet Size (2): " + this.packetSize + "\n" +
-           "Data Size (2): " + this.dataSize + "\n" +
-           "Window Size (4): " + this.windowSize + "\n" +
-           "Code (1): " + this.code + "\n" +
-           "Sequence Number (4): " + this.seqNum + "\n" +
-           "Ack Number (4): " + this.ackNum + "\n" +
-           "Source Port (4): " + this.sPort + "\n" +
-           "Destination Port (4): " + this.dPort + "\n" +
-           "Source IP (" + this.sIP.getBytes().length + "): " + this.sIP + "\n" +
-           "Destination IP (" + this.dIP.getBytes().length + "): " + this.dIP;
+    return "Version: " + getVersion() + "\n" +
+           "Connection ID: " + getConnectionId() + "\n" +
+           "Header Size (1): " + getHeaderSize() + "\n" +
+           "Packet Size (2): " + getPacketSize() + "\n" +
+           "Data Size (2): " + getDataSize() + "\n" +
+           "Window Size (4): " + getWindowSize() + "\n" +
+           "Code (1): " + getCode() + "\n" +
+           "Sequence Number (4): " + getSeqNum() + "\n" +
+           "Ack Number (4): " + getAckNum() + "\n" +
+           "Source Port (4): " + getSourcePort() + "\n" +
+           "Destination Port (4): " + getDestPort() + "\n" +
+           "Source IP (" + getSourceIP().getBytes().length + "): " + getSourceIP() + "\n" +
+           "Destination IP (" + getDestIP().getBytes().length + "): " + getDestIP();
   }
 
   @Override
@@ -242,16 +421,18 @@ public class RTPHeader {
 
     final RTPHeader header = (RTPHeader) obj;
 
-    if ( this.headerSize == header.getHeaderSize() &&
-         this.dataSize == header.getDataSize() &&
-         this.windowSize == header.getWindowSize() &&
-         this.code == header.getCode() &&
-         this.seqNum == header.getSeqNum() &&
-         this.ackNum == header.getAckNum() &&
-         this.sPort == header.getSourcePort() &&
-         this.dPort == header.getDestPort() &&
-         this.sIP.equals(header.getSourceIP())  &&
-         this.dIP.equals(header.getDestIP()))
+    if ( getVersion() == header.getVersion() &&
+         getConnectionId() == header.getConnectionId() &&
+         getHeaderSize() == header.getHeaderSize() &&
+         getDataSize() == header.getDataSize() &&
+         getWindowSize() == header.getWindowSize() &&
+         getCode() == header.getCode() &&
+         getSeqNum() == header.getSeqNum() &&
+         getAckNum() == header.getAckNum() &&
+         getSourcePort() == header.getSourcePort() &&
+         getDestPort() == header.getDestPort() &&
+         getSourceIP().equals(header.getSourceIP())  &&
+         getDestIP().equals(header.getDestIP()))
         return true;
     return false;
   }
@@ -0,0 +1,323 @@
+package rtpPacket;
+
+/**
+ * RTPHeaderView is a read-only flyweight RTPHeader over a received buffer.
+ * Fixed fields are read at their offsets when asked for and the IPs are
+ * only turned into Strings the first time they are needed, so an ACK that
+ * is checked for its code and ack number never decodes anything else.
+ *
+ * Offsets follow the header formats documented in RTPHeader; Legacy reads
+ * version 1 headers and Fixed reads version 2 headers.
+ */
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+abstract class RTPHeaderView extends RTPHeader {
+
+  protected ByteBuffer buff;
+  protected int offset;
+
+  private RTPHeaderView(ByteBuffer buff, int offset) {
+    this.buff = buff;
+    this.offset = offset;
+  }
+
+  static RTPHeaderView legacy() { return new Legacy(null, 0); }
+
+  static RTPHeaderView fixed() { return new Fixed(null, 0, null); }
+
+  static boolean isFixed(ByteBuffer buff, int offset) {
+    return buff.get(offset) == VERSION_2;
+  }
+
+  /**
+  * reset points a view at another packet so pooled packets can reuse it
+  */
+
+  void reset(ByteBuffer buff, int offset, InetAddress source) {
+    this.buff = buff;
+    this.offset = offset;
+  }
+
+  /**
+  * wrap checks that the sizes at the buffer's position describe a well
+  * formed packet and returns a view over it, or null if they do not.
+  *
+  * Parameters: ByteBuffer, address the datagram came from
+  * Returns: RTPHeaderView
+  */
+
+  static RTPHeaderView wrap(ByteBuffer buff, InetAddress source) {
+    if(buff.remaining() < 1) return null;
+
+    RTPHeaderView view;
+    if(isFixed(buff, buff.position())) view = new Fixed(buff, buff.position(), source);
+    else view = new Legacy(buff, buff.position());
+
+    return view.isValid() ? view : null;
+  }
+
+  abstract boolean isValid();
+
+  /**
+  * Encoding a view copies the header bytes it was received as
+  */
+
+  @Override
+  public void writeTo(ByteBuffer out) {
+    int headerSize = getHeaderSize();
+    for(int i = 0; i < headerSize; i++) out.put(buff.get(offset + i));
+  }
+
+  protected String readString(int index, int length) {
+    byte[] bytes = new byte[length];
+    for(int i = 0; i < length; i++) bytes[i] = buff.get(index + i);
+    return new String(bytes);
+  }
+
+  /**
+  * Views are read-only
+  */
+
+  @Override
+  public void setVersion(int v) { throw readOnly(); }
+
+  @Override
+  public void setConnectionId(int id) { throw readOnly(); }
+
+  @Override
+  public void setFlags(int f) { throw readOnly(); }
+
+  @Override
+  public void setTimestamps(int value, int echo) { throw readOnly(); }
+
+  @Override
+  public void setDataSize(int s) { throw readOnly(); }
+
+  @Override
+  public void setWindowSize(int w) { throw readOnly(); }
+
+  @Override
+  public void setCode(int c) { throw readOnly(); }
+
+  @Override
+  public void setSeqNum(int s) { throw readOnly(); }
+
+  @Override
+  public void setAckNum(int a) { throw readOnly(); }
+
+  @Override
+  public void setSourcePort(int s) { throw readOnly(); }
+
+  @Override
+  public void setDestPort(int d) { throw readOnly(); }
+
+  @Override
+  public void setSourceIP(String s) { throw readOnly(); }
+
+  @Override
+  public void setDestIP(String d) { throw readOnly(); }
+
+  @Override
+  public void buildFromBytes(byte[] packet) { throw readOnly(); }
+
+  private UnsupportedOperationException readOnly() {
+    return new UnsupportedOperationException("received packet headers are read-only");
+  }
+
+  //============================================================================
+  // Version 1: variable length header with textual IPs
+  //============================================================================
+
+  private static class Legacy extends RTPHeaderView {
+
+    private static final int HEADER_SIZE = 0;
+    private static final int PACKET_SIZE = 1;
+    private static final int DATA_SIZE = 3;
+    private static final int WINDOW_SIZE = 5;
+    private static final int CODE = 9;
+    private static final int SEQ_NUM = 10;
+    private static final int ACK_NUM = 14;
+    private static final int SOURCE_PORT = 18;
+    private static final int DEST_PORT = 22;
+    private static final int SOURCE_IP_LENGTH = 26;
+    private static final int DEST_IP_LENGTH = 27;
+
+    private String sIP;
+    private String dIP;
+
+    Legacy(ByteBuffer buff, int offset) {
+      super(buff, offset);
+    }
+
+    @Override
+    void reset(ByteBuffer buff, int offset, InetAddress source) {
+      super.reset(buff, offset, source);
+      this.sIP = null;
+      this.dIP = null;
+    }
+
+    @Override
+    boolean isValid() {
+      if(buff.limit() - offset < BASE_LENGTH) return false;
+
+      int sLength = buff.get(offset + SOURCE_IP_LENGTH);
+      int dLength = buff.get(offset + DEST_IP_LENGTH);
+
+      return sLength >= 0 && dLength >= 0 &&
+             getHeaderSize() == BASE_LENGTH + sLength + dLength &&
+             getDataSize() >= 0 &&
+             getHeaderSize() + getDataSize() <= buff.limit() - offset;
+    }
+
+    @Override
+    public int getVersion() { return VERSION_1; }
+
+    @Override
+    public int getFlags() { return 0; }
+
+    @Override
+    public int getConnectionId() { return 0; }
+
+    @Override
+    public int getHeaderSize() { return buff.get(offset + HEADER_SIZE); }
+
+    @Override
+    public int getPacketSize() { return buff.getShort(offset + PACKET_SIZE); }
+
+    @Override
+    public int getDataSize() { return buff.getShort(offset + DATA_SIZE); }
+
+    @Override
+    public int getWindowSize() { return buff.getInt(offset + WINDOW_SIZE); }
+
+    @Override
+    public int getCode() { return buff.get(offset + CODE); }
+
+    @Override
+    public int getSeqNum() { return buff.getInt(offset + SEQ_NUM); }
+
+    @Override
+    public int getAckNum() { return buff.getInt(offset + ACK_NUM); }
+
+    @Override
+    public int getSourcePort() { return buff.getInt(offset + SOURCE_PORT); }
+
+    @Override
+    public int getDestPort() { return buff.getInt(offset + DEST_PORT); }
+
+    @Override
+    public String getSourceIP() {
+      if(sIP == null) sIP = readString(offset + BASE_LENGTH, buff.get(offset + SOURCE_IP_LENGTH));
+      return sIP;
+    }
+
+    @Override
+    public String getDestIP() {
+      if(dIP == null) {
+        int sLength = buff.get(offset + SOURCE_IP_LENGTH);
+        dIP = readString(offset + BASE_LENGTH + sLength, buff.get(offset + DEST_IP_LENGTH));
+      }
+      return dIP;
+    }
+  }
+
+  //============================================================================
+  // Version 2: fixed length header, peer address taken from the datagram
+  //============================================================================
+
+  private static class Fixed extends RTPHeaderView {
+
+    private static final int CODE = 1;
+    private static final int FLAGS = 2;
+    private static final int HEADER_SIZE = 3;
+    private static final int DATA_SIZE = 4;
+    private static final int SOURCE_PORT = 6;
+    private static final int DEST_PORT = 8;
+    private static final int WINDOW_SIZE = 12;
+    private static final int CONNECTION_ID = 16;
+    private static final int SEQ_NUM = 20;
+    private static final int ACK_NUM = 24;
+    private static final int TIMESTAMP = 28;
+    private static final int TIMESTAMP_ECHO = 32;
+
+    private InetAddress source;
+    private String sIP;
+
+    Fixed(ByteBuffer buff, int offset, InetAddress source) {
+      super(buff, offset);
+      this.source = source;
+    }
+
+    @Override
+    void reset(ByteBuffer buff, int offset, InetAddress source) {
+      super.reset(buff, offset, source);
+      if(this.source != source) this.sIP = null;
+      this.source = source;
+    }
+
+    @Override
+    boolean isValid() {
+      int required = hasFlag(FLAG_TIMESTAMP) ? FIXED_LENGTH + TIMESTAMP_LENGTH : FIXED_LENGTH;
+      return buff.limit() - offset >= FIXED_LENGTH &&
+             getHeaderSize() >= required &&
+             getPacketSize() <= buff.limit() - offset;
+    }
+
+    @Override
+    public int getVersion() { return VERSION_2; }
+
+    @Override
+    public int getFlags() { return buff.get(offset + FLAGS) & 0xFF; }
+
+    @Override
+    public int getConnectionId() { return buff.getInt(offset + CONNECTION_ID); }
+
+    @Override
+    public int getHeaderSize() { return buff.get(offset + HEADER_SIZE) & 0xFF; }
+
+    @Override
+    public int getPacketSize() { return getHeaderSize() + getDataSize(); }
+
+    @Override
+    public int getDataSize() { return buff.getShort(offset + DATA_SIZE) & 0xFFFF; }
+
+    @Override
+    public int getWindowSize() { return buff.getInt(offset + WINDOW_SIZE); }
+
+    @Override
+    public int getCode() { return buff.get(offset + CODE); }
+
+    @Override
+    public int getSeqNum() { return buff.getInt(offset + SEQ_NUM); }
+
+    @Override
+    public int getAckNum() { return buff.getInt(offset + ACK_NUM); }
+
+    @Override
+    public int getTimestamp() {
+      return hasFlag(FLAG_TIMESTAMP) ? buff.getInt(offset + TIMESTAMP) : 0;
+    }
+
+    @Override
+    public int getTimestampEcho() {
+      return hasFlag(FLAG_TIMESTAMP) ? buff.getInt(offset + TIMESTAMP_ECHO) : 0;
+    }
+
+    @Override
+    public int getSourcePort() { return buff.getShort(offset + SOURCE_PORT) & 0xFFFF; }
+
+    @Override
+    public int getDestPort() { return buff.getShort(offset + DEST_PORT) & 0xFFFF; }
+
+    @Override
+    public String getSourceIP() {
+      if(sIP == null) sIP = (source == null) ? "" : source.getHostAddress();
+      return sIP;
+    }
+
+    @Override
+    public String getDestIP() { return ""; }
+  }
+}
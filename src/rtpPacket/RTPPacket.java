@@ -1,5 +1,6 @@
 package rtpPacket;
 
+import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.nio.BufferOverflowException;
 
@@ -15,8 +16,18 @@ import util.*;
 public class RTPPacket {
 
   public static final int MAX_SIZE = 1000;
+  public static final byte[] EMPTY = new byte[0];
   private RTPHeader header;
   private byte[] data;
+  private ByteBuffer payload;
+  private Stamp stamp = Stamp.ADLER32;
+
+  private InetAddress source;
+
+  private PacketPool pool;
+  private byte[] frame;
+  private ByteBuffer frameBuff;
+  private RTPHeaderView legacyView, fixedView;
 
   /**
   * Constructors
@@ -47,15 +58,109 @@ public class RTPPacket {
     this.data = data;
   }
 
+  RTPPacket (RTPHeader header, ByteBuffer payload) {
+    this.header = header;
+    this.payload = payload;
+  }
+
+  RTPPacket (PacketPool pool, int frameSize) {
+    this.pool = pool;
+    this.frame = new byte[frameSize];
+    this.frameBuff = ByteBuffer.wrap(frame);
+    this.payload = ByteBuffer.wrap(frame);
+    this.legacyView = RTPHeaderView.legacy();
+    this.fixedView = RTPHeaderView.fixed();
+    this.header = legacyView;
+  }
+
+  /**
+  * wrap builds a read-only packet view over a received buffer. Header fields
+  * are decoded on demand and the payload is a slice of the buffer, so nothing
+  * is copied until getData() is called. Returns null if the header is
+  * malformed.
+  *
+  * Parameters: ByteBuffer positioned at the first header byte, address the
+  *             datagram came from (version 2 headers carry no IPs)
+  * Returns: RTPPacket
+  */
+
+  public static RTPPacket wrap(ByteBuffer buff, InetAddress source) {
+    RTPHeaderView header = RTPHeaderView.wrap(buff, source);
+    if(header == null) return null;
+
+    ByteBuffer payload = buff.duplicate();
+    payload.position(buff.position() + header.getHeaderSize());
+    payload.limit(payload.position() + header.getDataSize());
+    RTPPacket packet = new RTPPacket(header, payload.slice());
+    packet.source = source;
+    return packet;
+  }
+
+  /**
+  * Pooled packet methods. A pooled packet owns a frame that a datagram is
+  * received into; open() points the packet's header view and payload at the
+  * frame, and release() hands the packet back to its pool once the receiver
+  * is done with it. The packet must not be touched after release().
+  */
+
+  public byte[] getFrame() { return this.frame; }
+
+  public ByteBuffer getFrameBuffer() { return this.frameBuff; }
+
+  public boolean open(int offset, int length, InetAddress source) {
+    frameBuff.clear();
+    frameBuff.limit(length);
+
+    RTPHeaderView view = RTPHeaderView.isFixed(frameBuff, offset) ? fixedView : legacyView;
+    view.reset(frameBuff, offset, source);
+    if(!view.isValid()) return false;
+
+    int start = offset + view.getHeaderSize();
+    this.header = view;
+    this.source = source;
+    this.data = null;
+    this.payload.clear();
+    this.payload.position(start);
+    this.payload.limit(start + view.getDataSize());
+    return true;
+  }
+
+  public void release() {
+    if(pool == null) return;
+    this.data = null;
+    pool.release(this);
+  }
+
   /**
   * Get Methods
   */
 
   public RTPHeader getPacketHeader() { return this.header; }
 
-  public byte[] getData() { return this.data; }
+  /**
+  * getSource returns the address a received packet's datagram came from,
+  * or null for packets built locally
+  */
 
-  public int getDataSize() { return this.data.length; }
+  public InetAddress getSource() { return this.source; }
+
+  public byte[] getData() {
+    if(this.data == null) {
+      byte[] bytes = new byte[payload.remaining()];
+      payload.duplicate().get(bytes);
+      this.data = bytes;
+    }
+    return this.data;
+  }
+
+  public ByteBuffer getPayload() {
+    if(this.payload != null) return this.payload.duplicate();
+    return ByteBuffer.wrap(this.data);
+  }
+
+  public int getDataSize() { return this.header.getDataSize(); }
+
+  public Stamp getStamp() { return this.stamp; }
 
   public int getHeaderSize() { return this.header.getHeaderSize(); }
 
@@ -65,10 +170,20 @@ public class RTPPacket {
 
   public int getCode() { return this.header.getCode(); }
 
+  public int getVersion() { return this.header.getVersion(); }
+
+  public int getConnectionId() { return this.header.getConnectionId(); }
+
+  public int getFlags() { return this.header.getFlags(); }
+
   public int getSeqNum() { return this.header.getSeqNum(); }
 
   public int getAckNum() { return this.header.getAckNum(); }
 
+  public int getTimestamp() { return this.header.getTimestamp(); }
+
+  public int getTimestampEcho() { return this.header.getTimestampEcho(); }
+
   public int getSourcePort() { return this.header.getSourcePort(); }
 
   public int getDestPort() { return this.header.getDestPort(); }
@@ -86,12 +201,15 @@ public class RTPPacket {
   public void setPacketHeader(byte[] bytes) { this.header.buildFromBytes(bytes); }
 
   public void setData(byte[] d) {
+    this.header.setDataSize(d.length);
     this.data = d;
-    this.header.setDataSize(data.length);
+    this.payload = null;
   }
 
   public void setDataSize(int s) { this.header.setDataSize(s); }
 
+  public void setStamp(Stamp s) { this.stamp = s; }
+
   public void setWindowSize(int w) { this.header.setWindowSize(w); }
 
   public void setCode(int c) { this.header.setCode(c); }
@@ -116,6 +234,10 @@ public class RTPPacket {
     return this.header.isType(s);
   }
 
+  public boolean hasFlag(int flag) {
+    return this.header.hasFlag(flag);
+  }
+
   /**
   * toByte method for converting packet to a byte array
   *
@@ -124,15 +246,24 @@ public class RTPPacket {
   */
 
   public byte[] toBytes() {
-    ByteBuffer buff = ByteBuffer.allocate(this.getSize());
-    buff.put(this.header.toBytes());
-    buff.put(this.data);
-    buff.flip();
-    byte[] bytes = new byte[buff.remaining()];
-    buff.get(bytes);
+    byte[] bytes = new byte[this.getSize()];
+    writeTo(ByteBuffer.wrap(bytes));
     return bytes;
   }
 
+  /**
+  * writeTo encodes header and payload at the buffer's position in one pass
+  *
+  * Parameters: ByteBuffer
+  * Returns: -
+  */
+
+  public void writeTo(ByteBuffer buff) {
+    this.header.writeTo(buff);
+    if(this.payload != null) buff.put(this.payload.duplicate());
+    else buff.put(this.data);
+  }
+
   /**
   * buildFromBytes sets packet instance variables from byte array
   *
@@ -143,14 +274,14 @@ public class RTPPacket {
   public void buildFromBytes(byte[] packet) {
     try {
       ByteBuffer buff = ByteBuffer.wrap(packet);
-      int headerSize = buff.get();
-      buff = ByteBuffer.wrap(packet);
+      int headerSize = (packet[0] == RTPHeader.VERSION_2) ? packet[3] : packet[0];
       byte[] headerBytes = new byte[headerSize];
       buff.get(headerBytes);
       this.header.buildFromBytes(headerBytes);
       byte[] dataBytes = new byte[header.getDataSize()];
       buff.get(dataBytes);
       this.data = dataBytes;
+      this.payload = null;
     } catch (BufferOverflowException e) {
         Printer.errorLn("------------header size corrupted, disposing---------------");
     }
@@ -169,7 +300,7 @@ public class RTPPacket {
   */
 
   public String toString () {
-    return this.header.toString() + "\nData: (" + this.data.length + ")" + this.data.toString();
+    return this.header.toString() + "\nData: (" + getDataSize() + ")" + getData().toString();
   }
 
   @Override
@@ -180,7 +311,7 @@ public class RTPPacket {
     final RTPPacket packet = (RTPPacket) obj;
 
     if ( this.header.equals(packet.getPacketHeader()) &&
-         this.data == packet.getData())
+         getData() == packet.getData())
         return true;
 
     return false;
@@ -0,0 +1,52 @@
+package rtpPacket;
+
+import java.nio.ByteBuffer;
+
+import util.*;
+
+/**
+ * SegmentSource hands out the DATA packets for a payload one at a time, as
+ * the sender's window opens, instead of packetizing the whole payload up
+ * front. Each packet's payload is a slice of the source buffer, so nothing is
+ * copied and a packet can be collected as soon as it is acknowledged.
+ * Offsets are 64-bit, so a payload may be larger than 2 GB.
+ */
+
+public class SegmentSource {
+
+  private final PacketFactory factory;
+  private final Payload data;
+  private final int segmentSize;
+  private long position;
+
+  SegmentSource(PacketFactory factory, Payload data, int segmentSize) {
+    this.factory = factory;
+    this.data = data;
+    this.segmentSize = Math.min(segmentSize, Payload.OVERLAP);
+  }
+
+  public boolean hasNext() {
+    return position < data.length();
+  }
+
+  public RTPPacket next() {
+    long offset = position;
+    int size = (int) Math.min(segmentSize, data.length() - offset);
+    position += size;
+    return factory.createDATA(data.slice(offset, size), offset);
+  }
+
+  /**
+  * seek moves back to offset, to send the payload from there again
+  */
+
+  public void seek(long offset) {
+    this.position = offset;
+  }
+
+  public long getSegmentCount() {
+    return (data.length() + segmentSize - 1) / segmentSize;
+  }
+
+  public int getSegmentSize() { return this.segmentSize; }
+}
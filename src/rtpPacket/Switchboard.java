@@ -0,0 +1,67 @@
+package rtpPacket;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import util.*;
+
+/**
+ * Switchboard routes a connection's received packets by State. Handlers are
+ * registered per State and called on the receive loop the moment a packet is
+ * decoded; packets of a State nobody handles are put in the switchboard's
+ * PacketBuffer for code that still waits on a reply with a timeout, such as
+ * the handshake.
+ *
+ * Handlers run on the mailman's event loop, so like any Recipient they must
+ * not block, and they are responsible for releasing the packets they get.
+ */
+
+public class Switchboard {
+
+  private final AtomicReferenceArray<Recipient> handlers;
+  private final PacketBuffer buffer;
+
+  public Switchboard() {
+    this(new PacketBuffer());
+  }
+
+  public Switchboard(PacketBuffer buffer) {
+    this.handlers = new AtomicReferenceArray<Recipient>(State.values().length);
+    this.buffer = buffer;
+  }
+
+  /**
+  * on registers handler for every packet of a State, replacing any handler
+  * registered before
+  *
+  * Parameters: State, Recipient
+  * Returns: -
+  */
+
+  public void on(State state, Recipient handler) {
+    handlers.set(state.ordinal(), handler);
+  }
+
+  public void off(State state) {
+    handlers.set(state.ordinal(), null);
+  }
+
+  public void clear() {
+    for(int i = 0; i < handlers.length(); i++) handlers.set(i, null);
+  }
+
+  /**
+  * route hands a packet to its State's handler, or buffers it if there is none
+  *
+  * Parameters: RTPPacket
+  * Returns: -
+  */
+
+  public void route(RTPPacket in) {
+    int code = in.getCode();
+    Recipient handler = (code < 0 || code >= handlers.length()) ? null : handlers.get(code);
+    if(handler != null) handler.deliver(in);
+    else buffer.put(in);
+  }
+
+  public PacketBuffer getBuffer() { return this.buffer; }
+}
@@ -0,0 +1,141 @@
+package rtpProtocol;
+
+/**
+ * BBRController sizes the window from a model of the path instead of from
+ * losses, after BBR: it tracks the bottleneck bandwidth (the largest
+ * delivery rate seen over the last BW_ROUNDS rounds) and the propagation
+ * delay (the smallest round trip seen over MIN_RTT_WINDOW), and keeps about
+ * one bandwidth-delay product in flight.
+ *
+ * Phases: STARTUP doubles the window each round until the bandwidth stops
+ * growing for three rounds; DRAIN empties the queue STARTUP built; PROBE_BW
+ * cycles the window gain through CYCLE, a round above the model to look for
+ * more bandwidth and a round below to drain what that queued; PROBE_RTT
+ * shrinks to four packets for a moment when the delay estimate is stale, so
+ * a fresh minimum can be seen.
+ *
+ * There is no pacer, so the gains act on the window; a round is one delay
+ * estimate long and one delivery rate sample is taken per round.
+ */
+
+class BBRController implements CongestionController {
+
+  private static final double STARTUP_GAIN = 2.885;
+  private static final double[] CYCLE = { 1.25, 0.75, 1, 1, 1, 1, 1, 1 };
+  private static final int BW_ROUNDS = 10;
+  private static final long MIN_RTT_WINDOW = 10000000000L;
+  private static final long PROBE_RTT_TIME = 200000000L;
+  private static final int MIN_PACKETS = 4;
+
+  private enum Phase { STARTUP, DRAIN, PROBE_BW, PROBE_RTT }
+
+  private final int mss;
+  private Phase phase = Phase.STARTUP;
+  private long cwnd;
+
+  private final double[] bwSamples = new double[BW_ROUNDS];
+  private long round;
+  private double btlBw, fullBw;
+  private int fullBwRounds, cycle;
+
+  private long minRtt, minRttStamp, probeRttDone;
+  private long roundStart, roundDelivered;
+
+  BBRController (int mss) {
+    this.mss = mss;
+    this.cwnd = Congestion.initialWindow(mss);
+  }
+
+  @Override
+  public synchronized long getWindow () { return this.cwnd; }
+
+  @Override
+  public synchronized void onAck (long bytes, long rtt, long inFlight, long now) {
+    boolean expired = minRtt > 0 && now - minRttStamp > MIN_RTT_WINDOW;
+    if(rtt > 0 && (minRtt == 0 || rtt <= minRtt || expired)) {
+      minRtt = rtt;
+      minRttStamp = now;
+    }
+
+    if(roundStart == 0) roundStart = now;
+    roundDelivered += bytes;
+    if(minRtt > 0 && now - roundStart >= minRtt) endRound(now);
+
+    updatePhase(inFlight, expired, now);
+    cwnd = Math.max(targetWindow(), (long) MIN_PACKETS * mss);
+  }
+
+  /**
+  * endRound takes the round's delivery rate as a bandwidth sample and keeps
+  * the largest of the last BW_ROUNDS
+  */
+
+  private void endRound (long now) {
+    bwSamples[(int) (round % BW_ROUNDS)] = (double) roundDelivered / (now - roundStart);
+    round++;
+    roundStart = now;
+    roundDelivered = 0;
+
+    btlBw = 0;
+    for(double sample: bwSamples) btlBw = Math.max(btlBw, sample);
+
+    if(phase == Phase.STARTUP) {
+      if(btlBw >= fullBw * 1.25) {
+        fullBw = btlBw;
+        fullBwRounds = 0;
+      }
+      else if(++fullBwRounds >= 3) phase = Phase.DRAIN;
+    }
+    else if(phase == Phase.PROBE_BW) cycle = (cycle + 1) % CYCLE.length;
+  }
+
+  /**
+  * updatePhase moves between phases. expired says the delay estimate had
+  * gone MIN_RTT_WINDOW without a new minimum before this ACK refreshed it,
+  * which is what sends the connection to PROBE_RTT.
+  */
+
+  private void updatePhase (long inFlight, boolean expired, long now) {
+    if(phase == Phase.DRAIN && inFlight <= bdp()) phase = Phase.PROBE_BW;
+
+    if(phase != Phase.PROBE_RTT && expired) {
+      phase = Phase.PROBE_RTT;
+      probeRttDone = now + Math.max(PROBE_RTT_TIME, minRtt);
+    }
+    else if(phase == Phase.PROBE_RTT && now >= probeRttDone) {
+      minRttStamp = now;
+      phase = (fullBwRounds >= 3) ? Phase.PROBE_BW : Phase.STARTUP;
+    }
+  }
+
+  private long targetWindow () {
+    if(btlBw == 0) return cwnd;
+    switch (phase) {
+      case STARTUP:   return (long) (STARTUP_GAIN * bdp());
+      case DRAIN:     return (long) (bdp() / STARTUP_GAIN);
+      case PROBE_RTT: return (long) MIN_PACKETS * mss;
+      default:        return (long) (CYCLE[cycle] * bdp());
+    }
+  }
+
+  private long bdp () {
+    return (long) (btlBw * minRtt);
+  }
+
+  /**
+  * Loss does not move the model; the next ACK sets the window again
+  */
+
+  @Override
+  public synchronized void onLoss (long inFlight, long now) {}
+
+  /**
+  * A timeout means the path has gone quiet, so only a minimal window is
+  * kept until ACKs flow again
+  */
+
+  @Override
+  public synchronized void onTimeout (long inFlight, long now) {
+    cwnd = (long) MIN_PACKETS * mss;
+  }
+}
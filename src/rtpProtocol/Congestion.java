@@ -0,0 +1,35 @@
+package rtpProtocol;
+
+/**
+ * Congestion lists the congestion controllers a connection can send with.
+ * NEWRENO and CUBIC are loss based; BBR follows a model of the path's
+ * bottleneck bandwidth and round trip time and largely ignores loss.
+ */
+
+public enum Congestion {
+  NEWRENO, CUBIC, BBR;
+
+  /**
+  * create builds a fresh controller of this kind for one transfer
+  *
+  * Parameters: largest packet the connection sends, header included
+  * Returns: CongestionController
+  */
+
+  CongestionController create(int mss) {
+    switch (this) {
+      case NEWRENO: return new NewRenoController(mss);
+      case BBR:     return new BBRController(mss);
+      default:      return new CubicController(mss);
+    }
+  }
+
+  /**
+  * initialWindow is the window every controller starts from, as RFC 6928
+  * gives it: min(10 MSS, max(2 MSS, 14600 bytes))
+  */
+
+  static long initialWindow(int mss) {
+    return Math.min(10L * mss, Math.max(2L * mss, 14600));
+  }
+}
@@ -0,0 +1,49 @@
+package rtpProtocol;
+
+/**
+ * CongestionController decides how many bytes a sender may have in flight.
+ * RTPService lets out new DATA only while the bytes outstanding stay within
+ * both the controller's window and the receiver's advertised one, and tells
+ * the controller what the ACK stream shows.
+ *
+ * Byte counts include packet headers, as the sender's in-flight count does.
+ * Times are System.nanoTime values.
+ */
+
+interface CongestionController {
+
+  /**
+  * getWindow returns the congestion window in bytes
+  */
+
+  long getWindow();
+
+  /**
+  * onAck reports newly acknowledged data
+  *
+  * Parameters: bytes newly acknowledged, round trip sample in nanoseconds or
+  *             0 if the ACK gave none, bytes still in flight, now
+  * Returns: -
+  */
+
+  void onAck(long acked, long rtt, long inFlight, long now);
+
+  /**
+  * onLoss reports a loss the ACK stream revealed, at most once per window
+  *
+  * Parameters: bytes in flight when the loss was found, now
+  * Returns: -
+  */
+
+  void onLoss(long inFlight, long now);
+
+  /**
+  * onTimeout reports a retransmission timer running out, at most once per
+  * window
+  *
+  * Parameters: bytes in flight when the timer ran out, now
+  * Returns: -
+  */
+
+  void onTimeout(long inFlight, long now);
+}
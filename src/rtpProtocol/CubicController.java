@@ -0,0 +1,88 @@
+package rtpProtocol;
+
+/**
+ * CubicController is CUBIC congestion control (RFC 9438). After a loss the
+ * window grows along a cubic curve in the time since the loss, flattening out
+ * around the window where the loss happened (wMax) before probing beyond it,
+ * so growth does not depend on the round trip time. It never grows slower
+ * than Reno would on the same path.
+ *
+ * Windows are kept in MSS units while computing the curve.
+ */
+
+class CubicController implements CongestionController {
+
+  private static final double C = 0.4;
+  private static final double BETA = 0.7;
+  private static final double ALPHA = 3 * (1 - BETA) / (1 + BETA);
+  private static final double NANOS = 1e9;
+
+  private final int mss;
+  private long cwnd, ssthresh;
+  private double wMax, wEst, k;
+  private long epochStart, rtt;
+
+  CubicController (int mss) {
+    this.mss = mss;
+    this.cwnd = Congestion.initialWindow(mss);
+    this.ssthresh = Long.MAX_VALUE;
+  }
+
+  @Override
+  public synchronized long getWindow () { return this.cwnd; }
+
+  @Override
+  public synchronized void onAck (long bytes, long sample, long inFlight, long now) {
+    if(sample > 0) rtt = (rtt == 0) ? sample : Math.min(rtt, sample);
+
+    if(cwnd < ssthresh) {
+      cwnd += bytes;
+      return;
+    }
+
+    double window = (double) cwnd / mss;
+    if(epochStart == 0) {
+      epochStart = now;
+      if(window < wMax) k = Math.cbrt((wMax - window) / C);
+      else {
+        k = 0;
+        wMax = window;
+      }
+      wEst = window;
+    }
+
+    double t = (now - epochStart + rtt) / NANOS;
+    double target = C * Math.pow(t - k, 3) + wMax;
+    double segments = (double) bytes / mss;
+
+    wEst += ALPHA * segments / window;
+    if(target > window) window += (target - window) / window * segments;
+    window = Math.max(window, wEst);
+
+    cwnd = Math.max(cwnd, (long) (window * mss));
+  }
+
+  @Override
+  public synchronized void onLoss (long inFlight, long now) {
+    reduce();
+  }
+
+  @Override
+  public synchronized void onTimeout (long inFlight, long now) {
+    reduce();
+    cwnd = mss;
+  }
+
+  /**
+  * reduce records the window a loss happened at, lowering it further if the
+  * last loss came at a larger one (fast convergence), and cuts to BETA of it
+  */
+
+  private void reduce () {
+    double window = (double) cwnd / mss;
+    wMax = (window < wMax) ? window * (1 + BETA) / 2 : window;
+    epochStart = 0;
+    cwnd = Math.max((long) (cwnd * BETA), 2L * mss);
+    ssthresh = cwnd;
+  }
+}
@@ -0,0 +1,51 @@
+package rtpProtocol;
+
+/**
+ * NewRenoController is RFC 5681 congestion control: slow start doubles the
+ * window every round trip until ssthresh, congestion avoidance then adds one
+ * MSS per window acknowledged, a loss halves the window and a timeout drops
+ * it to one MSS.
+ */
+
+class NewRenoController implements CongestionController {
+
+  private final int mss;
+  private long cwnd, ssthresh, acked;
+
+  NewRenoController (int mss) {
+    this.mss = mss;
+    this.cwnd = Congestion.initialWindow(mss);
+    this.ssthresh = Long.MAX_VALUE;
+  }
+
+  @Override
+  public synchronized long getWindow () { return this.cwnd; }
+
+  @Override
+  public synchronized void onAck (long bytes, long rtt, long inFlight, long now) {
+    if(cwnd < ssthresh) {
+      cwnd += bytes;
+      return;
+    }
+
+    acked += bytes;
+    if(acked >= cwnd) {
+      acked -= cwnd;
+      cwnd += mss;
+    }
+  }
+
+  @Override
+  public synchronized void onLoss (long inFlight, long now) {
+    ssthresh = Math.max(inFlight / 2, 2L * mss);
+    cwnd = ssthresh;
+    acked = 0;
+  }
+
+  @Override
+  public synchronized void onTimeout (long inFlight, long now) {
+    ssthresh = Math.max(inFlight / 2, 2L * mss);
+    cwnd = mss;
+    acked = 0;
+  }
+}
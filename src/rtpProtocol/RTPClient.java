@@ -1,6 +1,12 @@
 package rtpProtocol;
 
 import java.net.*;
+import java.nio.file.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import rtpPacket.*;
 import util.*;
@@ -15,14 +21,29 @@ public class RTPClient {
 
   private Mailman mailman;
 
+  private Switchboard switchboard;
   private PacketBuffer buffer;
 
   private PacketFactory factory;
 
   private RTPService getProcess, postProcess;
-  private byte[] getData;
 
-  private boolean connected, getComplete, postComplete;
+  private volatile boolean connected, getWritten;
+  private boolean probeMTU;
+  private int ackEvery = RTPService.ACK_EVERY;
+  private long ackDelay = RTPService.ACK_DELAY;
+  private Congestion congestion = Congestion.CUBIC;
+  private CountDownLatch receiving, getComplete;
+  private volatile Future<Boolean> getWrite;
+  private final ThreadPoolExecutor files;
+  private long synSentAt;
+  private int synSends;
+
+  /**
+  * Datagram sizes path probes try, by either end
+  */
+
+  static final int[] PROBE_SIZES = { Mailman.MAX_DATAGRAM, 32740, 16356, 8972, Mailman.SAFE_DATAGRAM };
 
   public RTPClient (String dIP, int dPort, int window) {
     this.sIP = RTPUtil.getIPAddress();
@@ -32,9 +53,11 @@ public class RTPClient {
     this.dPort = dPort;
     this.window = window;
 
-    this.buffer = new PacketBuffer();
+    this.switchboard = new Switchboard();
+    this.buffer = switchboard.getBuffer();
 
     mailman = new Mailman(sPort, sIP);
+    files = RTPService.newFileExecutor();
     p = new Printer(false);
   }
 
@@ -45,17 +68,23 @@ public class RTPClient {
   public boolean start () {
     receivePackets();
     this.factory = new PacketFactory(sPort, sIP, window);
+    this.factory.setReceiveLimit(mailman.getReceiveLimit());
     connect();
+    answerProbes();
+    if(connected && probeMTU) probePath();
     return connected;
   }
 
+  /**
+  * receivePackets routes every packet through the switchboard as soon as it
+  * is decoded. Handlers are installed as the connection moves through its
+  * states; until then replies wait in the buffer.
+  */
+
   private void receivePackets () {
-    new Thread(new Runnable() {@Override public void run() {
-      for(;;) {
-        RTPPacket in = mailman.receive();
-        buffer.put(in);
-      }
-    }}).start();
+    mailman.listen(new Recipient() {@Override public void deliver(RTPPacket in) {
+      switchboard.route(in);
+    }});
   }
 
   public void disconnect () {
@@ -68,6 +97,7 @@ public class RTPClient {
     connected = false;
     p.logError("firing mailman and ending connection");
     mailman.fire();
+    files.shutdown();
   }
 
   //============================================================================
@@ -77,8 +107,6 @@ public class RTPClient {
   private boolean connect () {
     if(this.connected) return false;
 
-    long startTime = System.currentTimeMillis();
-
     RTPPacket synack = sendSYN();
 
     if(synack == null) {
@@ -86,10 +114,15 @@ public class RTPClient {
       return false;
     }
 
+    long RTT = (synSends == 1) ? System.nanoTime() - synSentAt : 0;
+
     int recvWindow = synack.getWindowSize();
     factory.setRecvWindow(recvWindow);
+    factory.acceptSYNACK(synack);
+    this.dPort = factory.getDestPort();
+    mailman.connect(factory.getPeer());
 
-    this.connected = sendSYNFIN(startTime);
+    this.connected = sendSYNFIN(RTT);
 
     p.logStatus("connected to server at " + this.dIP + ":" + this.dPort +
               " with window size " + recvWindow);
@@ -99,105 +132,172 @@ public class RTPClient {
 
   private RTPPacket sendSYN () {
     RTPPacket syn = factory.createSYN(dPort, dIP);
+    if(factory.getPeer().isUnresolved()) {
+      p.logError("could not resolve " + dIP);
+      return null;
+    }
 
-    int timeout = 0;
+    synSends = 0;
     for(;;) {
-      if(timeout >= 10) return null;
+      if(synSends >= 10) return null;
 
-      mailman.send(syn);
+      mailman.send(syn, factory.getPeer());
+      synSentAt = System.nanoTime();
+      synSends++;
       p.logStatus("sent connection request");
 
-      stall();
-
-      if(buffer.hasSYNACK()) {
-        RTPPacket synack = buffer.getSYNACK();
+      RTPPacket synack = buffer.poll(State.SYNACK, factory.getRTO());
+      if(synack != null) {
         p.logStatus("received connection confirmation");
         return synack;
       }
 
       p.logInfo("no response to SYN... resending");
-      timeout++;
     }
   }
 
-  private boolean sendSYNFIN(long startTime) {
-    long RTT = System.currentTimeMillis() - startTime;
-
-    RTPPacket synfin = factory.createSYNFIN(RTT);
-    RTT = (long) (RTT * 1.2);
-    factory.setRTT(RTT);
-
-    for(;;) {
-      mailman.send(synfin);
-      long synfinSendTime = System.currentTimeMillis();
-
-      float secRTT = (float) (RTT*1.2)/1000;
-      p.logStatus("sending server RTT probe of " + secRTT + " seconds");
-
-      stall();
+  /**
+  * sendSYNFIN completes the handshake. The server repeats its SYNACK until a
+  * SYNFIN gets through, so from here on every SYNACK is answered with the
+  * SYNFIN again rather than waited for.
+  *
+  * The SYN's round trip seeds both ends' RTO estimators; the SYNFIN carries
+  * it in milliseconds, or 0 if the SYN had to be repeated and its SYNACK
+  * can't be matched to one send.
+  */
+
+  private boolean sendSYNFIN(long RTT) {
+    if(RTT > 0) factory.sampleRTT(RTT);
+    RTPPacket synfin = factory.createSYNFIN(RTT / 1000000L);
+
+    switchboard.on(State.SYNACK, new Recipient() {@Override public void deliver(RTPPacket in) {
+      p.logInfo("server repeated SYNACK... resending SYNFIN");
+      mailman.send(synfin, factory.getPeer());
+      in.release();
+    }});
+
+    while(buffer.hasSYNACK()) buffer.getSYNACK().release();
+
+    float secRTT = (float) RTT/1000000000L;
+    p.logStatus("sending server RTT probe of " + secRTT + " seconds");
+    mailman.send(synfin, factory.getPeer());
+    return true;
+  }
 
-      while(!buffer.hasSYNACK()) {
-        boolean secondsPassed = (System.currentTimeMillis() - synfinSendTime > 2000);
-        if (secondsPassed) return true;
-        stall();
+  /**
+  * probePath sends one probe of each candidate datagram size the peer can
+  * receive and keeps the largest the server echoes. The first probe also
+  * starts the server probing the other way, which answerProbes echoes.
+  */
+
+  /**
+  * answerProbes echoes the server's path probes, so it learns which datagram
+  * sizes reach this side. Echoes of this side's own probes carry no padding
+  * and are left in the buffer for probePath.
+  */
+
+  private void answerProbes () {
+    switchboard.on(State.PROBE, new Recipient() {@Override public void deliver(RTPPacket in) {
+      if(in.getDataSize() == 0) {
+        buffer.put(in);
+        return;
       }
+      mailman.send(factory.createPROBEACK(in), factory.getPeer());
+      in.release();
+    }});
+  }
 
-      buffer.getSYNACK();
-
-      p.logInfo("no response to SYNFIN... resending");
+  private void probePath () {
+    int[] sent = new int[PROBE_SIZES.length];
+    int[] sizes = new int[PROBE_SIZES.length];
+    int probes = 0;
+
+    for(int size : PROBE_SIZES) {
+      if(size > factory.getPeerLimit()) continue;
+      RTPPacket probe = factory.createPROBE(size);
+      sent[probes] = probe.getSeqNum();
+      sizes[probes++] = size;
+      mailman.send(probe, factory.getPeer());
     }
+    if(probes == 0) return;
+
+    int largest = 0;
+    boolean answered = false;
+    long deadline = System.currentTimeMillis() + Math.max(2 * factory.getRTT(), 200);
+    while(System.currentTimeMillis() < deadline) {
+      RTPPacket echo = buffer.poll(State.PROBE, deadline - System.currentTimeMillis());
+      if(echo == null) continue;
+      answered = true;
+      for(int i = 0; i < probes; i++)
+        if(sent[i] == echo.getAckNum()) largest = Math.max(largest, sizes[i]);
+      echo.release();
+    }
+
+    if(!answered) return;
+    factory.setPathLimit(Math.max(largest, RTPPacket.MAX_SIZE));
+    p.logStatus("path probe settled on " + factory.getPathLimit() + " byte datagrams");
   }
 
   //============================================================================
   // Data get methods
   //============================================================================
 
-  public byte[] get (String filename) {
-    getComplete = false;
-    buffer = new PacketBuffer();
+  /**
+  * get downloads filename from the server into the file at output
+  *
+  * Parameters: name of the file at the server, path to write it to
+  * Returns: true once the file has been written completely
+  */
+
+  public boolean get (String filename, String output) {
+    getWritten = false;
 
     if(!this.connected) {
       p.logError("not yet connected to server");
-      return null;
+      return false;
     }
 
     getProcess = createConnectionService();
-    getProcess.startGet();
-
-    boolean receiving = sendGet(filename);
-    if(receiving) processIncomingData(filename);
-    else p.logError(filename + " does not exist at server");
+    if(!getProcess.startGet(Paths.get(output))) return false;
 
-    while(!getComplete) { stall(); }
-
-    return this.getData;
+    processIncomingData(filename);
+    if(!sendGet(filename)) {
+      p.logError(filename + " does not exist at server");
+      return false;
+    }
 
+    awaitGet();
+    return this.getWritten;
   }
 
-  public byte[] getPost (String getFilename, String postFilename) {
-    getComplete = false;
-    postComplete = false;
-    buffer = new PacketBuffer();
+  public boolean getPost (String getFilename, String postFilename, String output) {
+    getWritten = false;
 
     if(!this.connected) {
       p.logError("not yet connected to server");
-      return null;
+      return false;
     }
 
     getProcess = createConnectionService();
-    getProcess.startGet();
+    if(!getProcess.startGet(Paths.get(output))) return false;
+
+    Payload data = RTPUtil.mapFile(postFilename, "src/fta/input/");
+    if(data == null) {
+      p.logError(postFilename + " does not exist");
+      return false;
+    }
 
     postProcess = createConnectionService();
-    byte[] data = RTPUtil.getFileBytes(postFilename);
     processOutgoingData(data, postFilename);
 
-    boolean receiving = sendGet(getFilename);
-    if(receiving) processIncomingData(getFilename);
-    else p.logError(getFilename + " does not exist at server");
-
-    while(!getComplete && !postComplete) { stall(); }
+    processIncomingData(getFilename);
+    if(!sendGet(getFilename)) {
+      p.logError(getFilename + " does not exist at server");
+      return false;
+    }
 
-    return this.getData;
+    awaitGet();
+    return this.getWritten;
   }
 
   //============================================================================
@@ -205,73 +305,86 @@ public class RTPClient {
   //============================================================================
 
   private RTPService createConnectionService () {
-    return new RTPService (mailman, factory, logging);
+    RTPService service = new RTPService (mailman, factory, logging);
+    service.setFileExecutor(files);
+    service.setAckCoalescing(ackEvery, ackDelay);
+    service.setCongestionControl(congestion);
+    return service;
   }
 
+  /**
+  * sendGet repeats the GET every RTO until the first DATA packet arrives
+  */
+
   private boolean sendGet (String filename) {
     RTPPacket get = factory.createGET(filename.getBytes());
 
     int timeout = 0;
     for(;;) {
       if(timeout >= 10) return false;
-      mailman.send(get);
+      mailman.send(get, factory.getPeer());
       p.logSend("sent GET packet for " + filename, get.getSeqNum());
 
-      stall();
-
-      if(buffer.hasDATA()) return true;
+      if(await(receiving, factory.getRTO())) return true;
 
       p.logInfo("no response to GET... resending");
       timeout++;
     }
   }
 
+  /**
+  * processIncomingData installs the handlers for a GET's DATA and DATAFIN.
+  * The first DATAFIN completes the file; every DATAFIN is acknowledged, as a
+  * repeat means the server missed the last ACK.
+  */
+
   private void processIncomingData (String filename) {
-    p.logStatus("incoming DATA for " + filename);
-
-    new Thread(new Runnable() {@Override public void run() {
-      for(;;) {
-        if(buffer.hasDATAFIN()) {
-          sendDataFinAck(buffer.getDATAFIN());
-          endGet(filename);
-          return;
-        }
-        else if(buffer.hasDATA()){
-          getProcess.handleData(buffer.getDATA());
-        }
-        else RTPUtil.delay();
-        //   RTPUtil.stall();
+    receiving = new CountDownLatch(1);
+    getComplete = new CountDownLatch(1);
+
+    switchboard.on(State.DATA, new Recipient() {@Override public void deliver(RTPPacket data) {
+      RTPService get = getProcess;
+      if(get != null) get.handleData(data);
+      else data.release();
+      receiving.countDown();
+    }});
+
+    switchboard.on(State.DATAFIN, new Recipient() {@Override public void deliver(RTPPacket datafin) {
+      RTPService get = getProcess;
+      if(get != null && get.isReceived(datafin)) {
+        p.logStatus("incoming DATA for " + filename + " complete");
+        endGet(filename, datafin);
       }
-    }}).start();
-  }
-
-  private void sendDataFinAck (RTPPacket datafin) {
-    RTPPacket datafinack = factory.createACK(datafin);
-
-    for(;;) {
       p.logStatus("updating server with get completed status");
-      mailman.send(datafinack);
-      long sendTime = System.currentTimeMillis();
-
-      stall();
-
-      while(!buffer.hasDATAFIN()) {
-        boolean secondsPassed = (System.currentTimeMillis() - sendTime > 2000);
-        if (secondsPassed) return;
-        stall();
-      }
+      mailman.send(factory.createACK(datafin), factory.getPeer());
+      datafin.release();
+    }});
+  }
 
-      buffer.getDATAFIN();
+  private void endGet (String filename, RTPPacket datafin) {
+    p.logStatus("GET process completed for " + filename);
+    this.getWrite = getProcess.endGet(datafin);
+    getProcess = null;
+    receiving.countDown();
+    getComplete.countDown();
+  }
 
-      p.logInfo("no response to completion status... resending");
+  private void awaitGet () {
+    try {
+      getComplete.await();
+      this.getWritten = getWrite.get();
+    } catch (InterruptedException | ExecutionException e) {
+      Printer.errorLn(e.getMessage());
     }
   }
 
-  private void endGet (String filename) {
-    p.logStatus("GET process completed for " + filename);
-    this.getData = getProcess.getData();
-    getProcess = null;
-    getComplete = true;
+  private boolean await (CountDownLatch latch, long timeout) {
+    try {
+      return latch.await(timeout, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Printer.errorLn(e.getMessage());
+      return false;
+    }
   }
 
 
@@ -279,22 +392,17 @@ public class RTPClient {
   // Methods for POST
   //============================================================================
 
-  private void processOutgoingData(byte[] data, String filename) {
-    postProcess.startPost(data, filename);
+  private void processOutgoingData(Payload data, String filename) {
     listenForAck();
+    postProcess.startPost(data, filename);
   }
 
   private void listenForAck () {
-    new Thread(new Runnable() {@Override public void run() {
-      for(;;) {
-        if(buffer.hasACK()) {
-          RTPPacket ack = buffer.getACK();
-          postProcess.handleAck(ack);
-        }
-        else RTPUtil.delay();
-          //stall();
-      }
-    }}).start();
+    switchboard.on(State.ACK, new Recipient() {@Override public void deliver(RTPPacket ack) {
+      RTPService post = postProcess;
+      if(post != null) post.handleAck(ack);
+      else ack.release();
+    }});
   }
 
 
@@ -307,12 +415,12 @@ public class RTPClient {
 
     for(;;) {
       p.logStatus("sending termination request");
-      mailman.send(fin);
-
-      RTPUtil.stall(200);
+      mailman.send(fin, factory.getPeer());
 
-      if(buffer.hasFINACK()) {
+      RTPPacket finack = buffer.poll(State.FINACK, 200);
+      if(finack != null) {
         p.logStatus("received confirmation of termination request");
+        finack.release();
         sendEND();
         return true;
       }
@@ -321,26 +429,21 @@ public class RTPClient {
     }
   }
 
+  /**
+  * sendEND answers FINACKs for two seconds after the last one, so a server
+  * that missed the END hears it again before the socket closes
+  */
+
   private boolean sendEND () {
     RTPPacket end = factory.createEND();
 
     for(;;) {
       p.logStatus("updating server with END status");
-      mailman.send(end);
-      long endSendTime = System.currentTimeMillis();
-
-      RTPUtil.stall(200);
-
-      while(!buffer.hasFINACK()) {
-        boolean secondsPassed = (System.currentTimeMillis() - endSendTime > 2000);
-        if (secondsPassed) {
-          postComplete = true;
-          return true;
-        }
-        RTPUtil.stall(200);
-      }
+      mailman.send(end, factory.getPeer());
 
-      buffer.getFINACK();
+      RTPPacket finack = buffer.poll(State.FINACK, 2000);
+      if(finack == null) return true;
+      finack.release();
 
       p.logInfo("no response to END... resending");
     }
@@ -356,6 +459,28 @@ public class RTPClient {
     this.mailman.setLogging(l);
   }
 
+  public void setProbeMTU(boolean probe) {
+    this.probeMTU = probe;
+  }
+
+  /**
+  * setAckCoalescing sets how received DATA is acknowledged; see
+  * RTPService.setAckCoalescing
+  */
+
+  public void setAckCoalescing(int every, long delay) {
+    this.ackEvery = every;
+    this.ackDelay = delay;
+  }
+
+  /**
+  * setCongestionControl picks the congestion controller posts are sent with
+  */
+
+  public void setCongestionControl(Congestion control) {
+    this.congestion = control;
+  }
+
   public void setCorrupted(boolean c) {
     this.corruption = c;
     this.mailman.setCorrupted(c);
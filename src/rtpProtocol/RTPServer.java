@@ -1,355 +1,140 @@
 package rtpProtocol;
 
-import java.net.*;
-import java.util.*;
-
 import rtpPacket.*;
 import util.*;
 
+/**
+ * RTPServer serves a port from one or more RTPShards, each with its own
+ * socket and receive loop, so receive processing can use more than one core.
+ *
+ * Where the platform supports SO_REUSEPORT every shard binds the server's
+ * port and the kernel keeps each client on one shard. Otherwise shard i
+ * binds port + i: SYNs arrive at shard 0, which hands each client to a shard
+ * picked from its address, and that shard's SYNACK moves the client over to
+ * its port. Clients that don't negotiate version 2 stay on shard 0.
+ */
+
 public class RTPServer {
 
   private Printer p;
 
   private boolean corruption, logging;
 
-  private Mailman mailman;
-
-  private String sIP, pathway;
-  private int sPort, window;
+  private String pathway, output;
+  private int sPort, window, shardCount;
+  private int ackEvery = RTPService.ACK_EVERY;
+  private long ackDelay = RTPService.ACK_DELAY;
+  private Congestion congestion = Congestion.CUBIC;
+  private boolean sharedPort;
 
-  private PacketBuffer buffer;
-
-  private HashMap<String, PacketFactory> factories;
-  private HashMap<String, RTPService> posts, gets;
+  private RTPShard[] shards;
 
   private boolean running;
 
   public RTPServer (int sPort, int win) {
     this.sPort = sPort;
-    this.sIP = RTPUtil.getIPAddress();
     this.window = win;
-    this.factories = new HashMap<String, PacketFactory>();
-    this.posts = new HashMap<String, RTPService>();
-    this.gets = new HashMap<String, RTPService>();
+    this.shardCount = 1;
 
     p = new Printer(false);
-    mailman = new Mailman(sPort, sIP);
+  }
+
+  /**
+  * setShards sets how many sockets the server receives on; call before start
+  */
+
+  public void setShards (int count) {
+    this.shardCount = Math.max(1, Math.min(count, RTPShard.MAX_SHARDS));
   }
 
   //============================================================================
   // Start Server Methods
   //============================================================================
 
-  public boolean start (String pathway) {
+  /**
+  * start serves GET requests from the files under pathway and writes files
+  * clients post to output
+  */
+
+  public boolean start (String pathway, String output) {
     if(running) {
       Printer.errorLn("Server is already running.");
       return false;
     }
     this.pathway = pathway;
+    this.output = output;
 
     running = true;
-    buffer = new PacketBuffer();
-
-    receivePackets();
-
-    RTPUtil.stall();
-
-    listenForData();
-
-    return true;
-  }
-
-  public void receivePackets () {
-    new Thread(new Runnable() {@Override public void run() {
-      p.logStatus("receiving at " + sIP + ":" + sPort + " with window size " + window);
-      for(;;) {
-        RTPPacket in = mailman.receive();
-        buffer.put(in);
-        if(in.isType(State.SYN)) acceptConnection();
-        else if(in.isType(State.GET)) handleGet();
-        else if(in.isType(State.ACK)) handleAck();
-        else if(in.isType(State.FIN)) handleFin();
-      }
-    }}).start();
-  }
-
-  //============================================================================
-  // Establish connection methods
-  //============================================================================
-
-  private void acceptConnection () {
-
-    new Thread(new Runnable() {@Override public void run() {
-      for(;;) {
-        RTPPacket syn = newConnectionRequest();
-        if(syn == null) return;
-
-        p.logStatus("received a connection request");
-        createConnection(syn);
-
-        sendSYNACK(syn, factories.get(syn.hash()));
-      }
-    }}).start();
-  }
-
-  private RTPPacket newConnectionRequest () {
-    if(buffer.hasSYN()) {
-      RTPPacket syn = buffer.getSYN();
-      String key = syn.hash();
-      boolean connectionExists = (factories.get(key) != null);
-      if (!connectionExists)
-        return syn;
-    }
-    return null;
-  }
-
-  private void createConnection(RTPPacket syn) {
-    int recvWindow = syn.getWindowSize();
-    PacketFactory factory = new PacketFactory(sPort, sIP, window, recvWindow);
-    factories.put(syn.hash(), factory);
-  }
-
-  private void sendSYNACK (RTPPacket syn, PacketFactory factory) {
-    String connection = syn.hash();
-    RTPPacket synack = factories.get(connection).createSYNACK(syn);
-
-    for(;;) {
-      mailman.send(synack);
-      p.logStatus("sent connection confirmation");
-
-      RTPUtil.stall(200);
-
-      if(buffer.hasSYNFIN()) {
-        RTPPacket synfin = buffer.getSYNFIN();
-        String key = synfin.hash();
-        if(factories.containsKey(key)) {
-          factories.get(key).setConnected(true);
-          long RTT = RTPUtil.longFromByte(synfin.getData());
-          RTT = (long) (RTT * 1.2);
-          factories.get(key).setRTT(RTT);
-          float secRTT = (float) (RTT*1.2)/1000;
-          p.logStatus("received RTT probe of " + secRTT + " seconds");
-        }
-      }
-
-      if(factories.get(connection).isConnected()) {
-        p.logStatus("connected to client at " + connection);
-        return;
-      };
-
-      p.logInfo("no response to SYNACK... resending");
-    }
-  }
-
-  //============================================================================
-  // Data post methods
-  //============================================================================
-
-  private void handleGet () {
-
-    new Thread(new Runnable() {@Override public void run() {
-      //for(;;) {
-        RTPPacket get = newGetRequest();
-
-        String key = get.hash();
-
-        String filename = new String(get.getData());
-        p.logStatus("received a GET request for " + filename);
-
-
-        if(RTPUtil.filesExist(filename)) {
-          RTPService postProcess = new RTPService(mailman, factories.get(key), logging);
-
-          posts.put(key, postProcess);
-
-          byte[] data = RTPUtil.getFileBytes(filename, pathway);
-          posts.get(key).startPost(data, filename);
-        }
-        else {
-          p.logError("requested file " + filename + " does not exist at " + pathway);
-        }
-
-      //}
-    }}).start();
-  }
-
-  private RTPPacket newGetRequest () {
-    for(;;) {
-      RTPUtil.stall();
-
-      if(buffer.hasGET()) {
-        RTPPacket get = buffer.getGET();
-        String key = get.hash();
-
-        boolean getExists = posts.containsKey(key);
-        if (!getExists)
-          return get;
-
-        boolean existingGetComplete = posts.get(key).isPostComplete();
-        if (existingGetComplete) {
-          posts.remove(key);
-          return get;
-        }
-      }
+    sharedPort = (shardCount > 1) && RTPUtil.canSharePort();
+
+    shards = new RTPShard[shardCount];
+    for(int i = 0; i < shardCount; i++) {
+      int port = sharedPort ? sPort : sPort + i;
+      shards[i] = new RTPShard(this, i, port, sharedPort);
+      shards[i].setLogging(logging);
+      shards[i].setCorrupted(corruption);
     }
-  }
+    for(RTPShard shard: shards) shard.start();
 
-  private void handleAck () {
-    new Thread(new Runnable() {@Override public void run() {
-      if(buffer.hasACK()) {
-        RTPPacket ack = buffer.getACK();
-        posts.get(ack.hash()).handleAck(ack);
-      }
-    }}).start();
+    if(shardCount > 1)
+      p.logStatus("serving with " + shardCount + " shards on " +
+                  (sharedPort ? "port " + sPort : "ports " + sPort + "-" + (sPort + shardCount - 1)));
+    return true;
   }
 
-  // private void listenForAck () {
-  //   //p.logStatus("accepting ACKS");
-  //
-  //   new Thread(new Runnable() {@Override public void run() {
-  //     for(;;) {
-  //       if(buffer.hasACK()) {
-  //         RTPPacket ack = buffer.getACK();
-  //         posts.get(ack.hash()).handleAck(ack);
-  //       }
-  //       else
-  //         RTPUtil.stall();
-  //     }
-  //   }}).start();
-  // }
+  /**
+  * shardFor picks the shard that owns the connection a SYN asks for. A
+  * client's address always maps to the same shard.
+  *
+  * Parameters: SYN packet, shard that received it
+  * Returns: RTPShard
+  */
 
-  //============================================================================
-  // Data get methods
-  //============================================================================
+  RTPShard shardFor (RTPPacket syn, RTPShard receiver) {
+    if(sharedPort || shards.length == 1 || receiver.getIndex() != 0)
+      return receiver;
 
-  private void listenForData () {
-    new Thread(new Runnable() {@Override public void run() {
-      for(;;) {
-        if(buffer.hasDATA()) handleData();
-        else if(buffer.hasDATAFIN()) handleDataFin();
-        else RTPUtil.stall();
-      }
-    }}).start();
-  }
-
-  private void handleData () {
-    RTPPacket data = buffer.getDATA();
-    String key = data.hash();
-    if(openProcess(key))
-      sendToProcess(key, data);
-    else
-      createGetProcess(key, data);
-  }
+    HandshakeOptions offered = HandshakeOptions.fromBytes(syn.getData());
+    if(offered.getVersion() < RTPHeader.VERSION_2) return receiver;
 
-  private void handleDataFin () {
-    RTPPacket datafin = buffer.getDATAFIN();
-    String key = datafin.hash();
-    if(openProcess(key)) {
-      sendDataFinAck(key, datafin);
-      endGet(key);
-    }
+    return shards[Math.floorMod(syn.hash().hashCode(), shards.length)];
   }
 
-  private void sendDataFinAck (String key, RTPPacket datafin) {
-    RTPPacket datafinack = factories.get(key).createACK(datafin);
+  int getWindow () { return this.window; }
 
-    for(;;) {
-      p.logStatus("updating client with GET completed status");
-      mailman.send(datafinack);
-      long sendTime = System.currentTimeMillis();
+  /**
+  * setAckCoalescing sets how clients' DATA is acknowledged; see
+  * RTPService.setAckCoalescing
+  */
 
-      RTPUtil.stall();
-
-      while(!buffer.hasDATAFIN()) {
-        boolean secondsPassed = (System.currentTimeMillis() - sendTime > 2000);
-        if (secondsPassed) return;
-        RTPUtil.stall();
-      }
-
-      buffer.getDATAFIN();
-
-      p.logInfo("no response to completion status... resending");
-    }
+  public void setAckCoalescing (int every, long delay) {
+    this.ackEvery = every;
+    this.ackDelay = delay;
   }
 
-  private boolean openProcess (String key) {
-    Boolean openGetProcess = gets.containsKey(key);
-    return openGetProcess;
-  }
+  /**
+  * setCongestionControl picks the congestion controller files are served
+  * with; every connection gets a controller of its own
+  */
 
-  private void sendToProcess (String key, RTPPacket data) {
-    gets.get(key).handleData(data);
+  public void setCongestionControl (Congestion control) {
+    this.congestion = control;
   }
 
-  private void createGetProcess (String key, RTPPacket data) {
-    p.logStatus("incoming DATA from " + key);
+  /**
+  * createService builds a connection's RTPService with the server's settings
+  */
 
-    PacketFactory factory = factories.get(key);
-    RTPService getProcess = new RTPService(mailman, factory, logging);
-
-    gets.put(key, getProcess);
-    gets.get(key).startGet();
-    gets.get(key).handleData(data);
-  }
-
-  private void endGet(String key) {
-    p.logStatus("GET process complete");
-    byte[] data = gets.get(key).getData();
-    RTPUtil.createPOSTFile(data);
-    gets.remove(key);
+  RTPService createService (Mailman mailman, PacketFactory factory) {
+    RTPService service = new RTPService(mailman, factory, logging);
+    service.setAckCoalescing(ackEvery, ackDelay);
+    service.setCongestionControl(congestion);
+    return service;
   }
 
-  //============================================================================
-  // End connection methods
-  //============================================================================
+  String getPathway () { return this.pathway; }
 
-  private void handleFin () {
-    new Thread(new Runnable() {@Override public void run() {
-      RTPPacket fin = newFIN();
-      if(fin == null) return;
-      String key = fin.hash();
-
-      PacketFactory factory = factories.remove(key);
-      sendFINACK(fin, factory);
-
-      p.logStatus("connection terminated with " + fin.hash());
-    }}).start();
-  }
-
-  private RTPPacket newFIN () {
-    if(buffer.hasFIN()) {
-      RTPPacket fin = buffer.getFIN();
-      String key = fin.hash();
-      boolean connectionExists = (factories.get(key) != null);
-      if (connectionExists) {
-        p.logStatus("received a request to terminate connection " + key);
-        return fin;
-      }
-    }
-    return null;
-  }
-
-  private void sendFINACK (RTPPacket fin, PacketFactory factory) {
-    RTPPacket finack = factory.createFINACK(fin);
-
-    for(;;) {
-      mailman.send(finack);
-      p.logStatus("confirming connection termination");
-
-      RTPUtil.stall(200);
-
-      if(buffer.hasEND()) {
-        RTPPacket end = buffer.getEND();
-        if(end.hash().equals(fin.hash())) {
-          String key = end.hash();
-          if(factories.containsKey(key)) factories.remove(key);
-          if(gets.containsKey(key)) gets.remove(key);
-          if(posts.containsKey(key)) posts.remove(key);
-          return;
-        }
-      }
-    }
-  }
+  String getOutput () { return this.output; }
 
   //============================================================================
   // Testing methods
@@ -358,11 +143,11 @@ public class RTPServer {
   public void setLogging(boolean l) {
     this.p = new Printer(l);
     this.logging = l;
-    this.mailman.setLogging(l);
+    if(shards != null) for(RTPShard shard: shards) shard.setLogging(l);
   }
 
   public void setCorrupted(boolean c) {
     this.corruption = c;
-    this.mailman.setCorrupted(c);
+    if(shards != null) for(RTPShard shard: shards) shard.setCorrupted(c);
   }
 }
@@ -1,13 +1,80 @@
 package rtpProtocol;
 
+import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import rtpPacket.*;
 import util.*;
 
 public class RTPService {
 
+  /**
+  * Most received ranges a SACK lists besides its cumulative point
+  */
+
+  public static final int MAX_SACK_BLOCKS = 4;
+
+  /**
+  * Default ACK coalescing on SACK connections: one ACK for every ACK_EVERY
+  * new in-order segments, or ACK_DELAY milliseconds after the first one
+  * still unacknowledged
+  */
+
+  public static final int ACK_EVERY = 2;
+  public static final long ACK_DELAY = 20;
+
+  /**
+  * Retransmission timers: a wheel of WHEEL_SLOTS ticks of WHEEL_TICK
+  * milliseconds, and at most MAX_BACKOFF doublings of a segment's timeout
+  */
+
+  public static final int WHEEL_SLOTS = 512;
+  public static final long WHEEL_TICK = 5;
+  public static final int MAX_BACKOFF = 6;
+
+  /**
+  * A post gives up on datagrams larger than Mailman.SAFE_DATAGRAM once one
+  * of them has timed out PATH_FALLBACK times in a row
+  */
+
+  public static final int PATH_FALLBACK = 3;
+
+  /**
+  * A segment is taken as lost once more than DUP_THRESH - 1 segments' worth
+  * of data sent after it has been acknowledged
+  */
+
+  public static final int DUP_THRESH = 3;
+
+  /**
+  * INLINE runs file work on the calling thread, for services given no
+  * executor of their own
+  */
+
+  private static final Executor INLINE = new Executor() {
+    @Override public void execute(Runnable task) { task.run(); }
+  };
+
+  /**
+  * Seconds a file executor's thread waits for work before it is let go
+  */
+
+  public static final long FILE_IDLE = 30;
+
   private boolean logging;
   private Printer p;
 
@@ -16,18 +83,44 @@ public class RTPService {
   private int recvWindow;
 
   private String postFilename;
+  private long postLength;
+  private Payload postData;
   private int unackedBytes;
-  private HashMap<Integer, RTPPacket> packetsToSend;
-  private HashMap<Integer, RTPPacket> sentPackets;
-  private HashMap<Integer, Boolean> acked;
-  private HashMap<Integer, Long> timeSent;
-
-  private boolean postComplete;
-
-  private int recvDataBytes;
+  private SegmentSource segments;
+  private RTPPacket nextPacket;
+  private boolean awaitingWrite;
+  private volatile ConcurrentSkipListMap<Long, Segment> sentPackets;
+  private TimerWheel retransmits;
+  private TreeMap<Long, Segment> timedOut;
+  private long timedOutBytes;
+  private long sentTo;
+  private volatile boolean sending;
+  private Congestion congestionControl = Congestion.CUBIC;
+  private CongestionController congestion;
+  private long recoverPoint, timeoutPoint, highestAcked, rttSample;
+  private int segmentSize;
+  private RTPPacket datafin;
+  private int datafinSeq;
+  private boolean datafinAcked;
+
+  private volatile boolean postComplete;
+
+  private long recvDataBytes, recvHighest;
   private long lastRecvTime;
-  private HashMap<Integer, RTPPacket> receivedPackets;
-  private boolean getComplete;
+  private Path outputPath, partPath;
+  private FileChannel output;
+  private Executor files = INLINE;
+  private volatile boolean receiving, writeFailed;
+  private RangeSet receivedRanges;
+  private long[] sackBlocks;
+  private int ackEvery = ACK_EVERY;
+  private long ackDelay = ACK_DELAY;
+  private int pendingAcks, pendingSeq, pendingEcho;
+  private long pendingBytes, recvEnd;
+  private boolean ackScheduled, gapped;
+  private TreeMap<Integer, byte[]> receivedPackets;
+  private boolean getComplete, finStamped;
+  private int finSeq, finStamp;
 
   public RTPService (Mailman mailman, PacketFactory factory, boolean logging) {
     this.mailman = mailman;
@@ -42,201 +135,813 @@ public class RTPService {
   // GET methods
   //============================================================================
 
-  public void startGet () {
+  /**
+  * startGet opens the file a transfer is received into. On version 2
+  * connections every DATA packet is written at the offset its sequence number
+  * gives as soon as it arrives, so nothing but the ranges received so far is
+  * kept in memory. Version 1 sequence numbers do not give offsets, so those
+  * payloads are held until the DATAFIN and written out in order.
+  *
+  * Data goes to a ".part" file of its own beside the output that is moved
+  * into place by endGet, so a late retransmission can never clobber a
+  * finished file, and transfers to the same output at once never write into
+  * each other's data: each completed one replaces the output whole.
+  *
+  * Opening, writing and finishing the file all run on the file executor, in
+  * order, so the event loop that hands DATA to handleData never waits on the
+  * disk. With the default executor they run on the caller.
+  *
+  * Parameters: Path of the output file, created or truncated
+  * Returns: false if the file could not be opened; always true when it is
+  *          opened on another thread, in which case endGet reports it
+  */
+
+  public boolean startGet (Path outputPath) {
     getComplete = false;
     lastRecvTime = System.currentTimeMillis();
-    this.receivedPackets = new HashMap<Integer, RTPPacket>();
+    this.recvDataBytes = 0;
+    this.recvHighest = 0;
+    this.recvEnd = 0;
+    this.pendingAcks = 0;
+    this.pendingBytes = 0;
+    this.gapped = false;
+    this.outputPath = outputPath;
+    this.receivedRanges = new RangeSet();
+    this.sackBlocks = new long[2 * MAX_SACK_BLOCKS];
+    this.receivedPackets = new TreeMap<Integer, byte[]>();
+    this.writeFailed = false;
+    this.receiving = true;
+    files.execute(new Runnable() {@Override public void run() {
+      openPart();
+    }});
+    return !writeFailed;
+  }
+
+  private void openPart () {
+    partPath = RTPUtil.createPart(outputPath);
+    output = (partPath == null) ? null : RTPUtil.openOutput(partPath);
+    if(output == null) writeFailed = true;
+  }
+
+  /**
+  * setFileExecutor sets where the received file is opened, written and
+  * finished. It must run tasks one at a time, in order.
+  */
+
+  public void setFileExecutor (Executor files) {
+    this.files = files;
+  }
+
+  /**
+  * newFileExecutor makes an executor for setFileExecutor: one thread at a
+  * time, in order, started on demand and let go after FILE_IDLE seconds
+  * with nothing to do. Its owner shuts it down when the connection ends.
+  */
+
+  static ThreadPoolExecutor newFileExecutor () {
+    return new ThreadPoolExecutor(0, 1, FILE_IDLE, TimeUnit.SECONDS,
+                                  new LinkedBlockingQueue<Runnable>());
+  }
+
+  /**
+  * setAckCoalescing sets how many new in-order segments, and how long after
+  * the first of them, a SACK connection waits before acknowledging. An every
+  * of 1 acknowledges each segment on arrival.
+  *
+  * Parameters: segments per ACK, delay in milliseconds
+  * Returns: -
+  */
+
+  public void setAckCoalescing (int every, long delay) {
+    this.ackEvery = Math.max(1, every);
+    this.ackDelay = Math.max(1, delay);
   }
 
   public boolean handleData (RTPPacket data) {
-    Boolean notReceived = !receivedPackets.containsKey(data.getSeqNum());
-    if(notReceived) bufferData(data);
-    sendAck(data);
+    boolean isNew = receiving && isNew(data);
+    if(isNew) bufferData(data);
+    acknowledge(data, isNew);
+    if(isNew && isPositioned()) store(data);
+    else data.release();
     return false;
   }
 
+  private boolean isNew (RTPPacket data) {
+    if(isPositioned()) return !receivedRanges.contains(offsetOf(data));
+    return !receivedPackets.containsKey(data.getSeqNum());
+  }
+
   private void bufferData (RTPPacket data) {
     lastRecvTime = System.currentTimeMillis();
 
     int key = data.getSeqNum();
-    receivedPackets.put(key, data);
+    if(isPositioned()) {
+      long offset = offsetOf(data);
+      receivedRanges.add(offset, offset + data.getDataSize());
+      recvHighest = Math.max(recvHighest, offset);
+      recvEnd = Math.max(recvEnd, offset + data.getDataSize());
+    }
+    else receivedPackets.put(key, data.getData());
+
     recvDataBytes += data.getDataSize();
     p.logReceive("received DATA packet " + key, recvDataBytes);
   }
 
-  private void sendAck(RTPPacket data) {
-    RTPPacket ack = factory.createACK(data);
-    mailman.send(ack);
+  /**
+  * store writes a DATA packet's payload at its offset on the file executor,
+  * which releases the packet once it is written. A failed write fails the
+  * whole transfer, since the range was already acknowledged.
+  */
+
+  private void store (RTPPacket data) {
+    long offset = offsetOf(data);
+    files.execute(new Runnable() {@Override public void run() {
+      if(output == null || !write(data.getPayload(), offset)) writeFailed = true;
+      data.release();
+    }});
+  }
+
+  /**
+  * acknowledge answers a DATA packet. Peers without SACK get the packet's
+  * own sequence number back at once. SACK peers get a cumulative ACK that
+  * may cover several packets: it is held back until ackEvery new packets
+  * are waiting, half the window is, or ackDelay has passed, but goes out at
+  * once for a duplicate and while a gap is open or just closed, so the
+  * sender hears about losses without delay.
+  *
+  * handleData and the ACK timer both run on the mailman's event loop, so the
+  * pending state needs no locking.
+  */
+
+  private void acknowledge(RTPPacket data, boolean isNew) {
+    if(!isSelective()) {
+      sendAck(stamp(factory.createACK(data), data.getTimestamp()));
+      return;
+    }
+
+    if(pendingAcks == 0) pendingEcho = data.getTimestamp();
+    pendingSeq = data.getSeqNum();
+    pendingAcks++;
+    pendingBytes += data.getSize();
+
+    boolean gap = receivedRanges.reach(0) < recvEnd;
+    boolean now = !isNew || gap || gapped || pendingAcks >= ackEvery ||
+                  2 * pendingBytes >= factory.getWindow();
+    gapped = gap;
+
+    if(now) flushAck();
+    else if(!ackScheduled) {
+      ackScheduled = true;
+      mailman.schedule(ackDelay, new Runnable() {@Override public void run() {
+        ackScheduled = false;
+        flushAck();
+      }});
+    }
+  }
+
+  private void flushAck() {
+    if(pendingAcks == 0) return;
+    pendingAcks = 0;
+    pendingBytes = 0;
+
+    long cumulative = receivedRanges.reach(0);
+    int count = receivedRanges.blocks(cumulative, Serial.extend(pendingSeq, recvHighest), sackBlocks);
+    sendAck(stamp(factory.createSACK(pendingSeq, cumulative, sackBlocks, count), pendingEcho));
+  }
+
+  /**
+  * stamp adds timestamps to an outgoing DATA or ACK on connections that
+  * agreed to them. A coalesced ACK echoes the oldest DATA it answers, so the
+  * sample it gives includes the time the ACK was held back.
+  *
+  * Parameters: packet, the peer's timestamp to echo (0 for none)
+  * Returns: the packet
+  */
+
+  private RTPPacket stamp(RTPPacket packet, int echo) {
+    if(isTimestamped()) packet.getPacketHeader().setTimestamps(timestamp(), echo);
+    return packet;
+  }
+
+  private boolean isTimestamped () {
+    return isPositioned() && factory.hasFeature(HandshakeOptions.FEATURE_TIMESTAMPS);
+  }
+
+  /**
+  * timestamp reads the clock DATA and ACKs carry: System.nanoTime in
+  * microseconds, truncated to 32 bits. Only differences are ever taken, so
+  * it wraps harmlessly every 71 minutes.
+  */
+
+  private static int timestamp() {
+    return (int) (System.nanoTime() / 1000L);
+  }
+
+  private void sendAck(RTPPacket ack) {
+    mailman.send(ack, factory.getPeer());
     p.logSend("sent ACK ", ack.getAckNum());
   }
 
-  public boolean isGetComplete () {
-    return getComplete;
+  /**
+  * endGet completes the output file once the DATAFIN arrives. Everything
+  * before it was acknowledged, so a positioned file only needs trimming to
+  * the length the DATAFIN carries. The file is finished on the file
+  * executor, after every write queued before it.
+  *
+  * Parameters: DATAFIN packet
+  * Returns: Future of true if the file was written completely
+  */
+
+  public Future<Boolean> endGet (RTPPacket datafin) {
+    final boolean ended = receiving;
+    final long length = (ended && isPositioned()) ? lengthOf(datafin) : 0;
+    FutureTask<Boolean> finish = new FutureTask<Boolean>(new Callable<Boolean>() {
+      @Override public Boolean call() { return ended && finishGet(length); }
+    });
+    if(!ended) {
+      finish.run();
+      return finish;
+    }
+
+    flushAck();
+    receiving = false;
+    getComplete = true;
+    finSeq = datafin.getSeqNum();
+    finStamped = datafin.hasFlag(RTPHeader.FLAG_TIMESTAMP);
+    finStamp = datafin.getTimestamp();
+    files.execute(finish);
+    return finish;
+  }
+
+  /**
+  * isLate tells whether DATA arriving after this GET ended was sent before
+  * its DATAFIN, making it a stray copy from this transfer rather than the
+  * start of the next one, which begins at offset 0 again. Version 1 sequence
+  * numbers run on from one transfer to the next; version 2 DATA is compared
+  * by timestamp with the DATAFIN, or failing that taken as late if it lies
+  * within the data already received. A late packet can be handed to
+  * handleData, which acknowledges it again and drops it.
+  *
+  * Parameters: DATA packet
+  * Returns: boolean
+  */
+
+  public boolean isLate (RTPPacket data) {
+    if(!getComplete) return false;
+    if(!isPositioned()) return data.getSeqNum() - finSeq < 0;
+    if(finStamped && data.hasFlag(RTPHeader.FLAG_TIMESTAMP))
+      return data.getTimestamp() - finStamp <= 0;
+    return offsetOf(data) + data.getDataSize() <= recvEnd;
+  }
+
+  /**
+  * abortGet gives up on a GET whose DATAFIN never came, closing and deleting
+  * its part file on the file executor once the writes queued before it are
+  * done
+  */
+
+  public void abortGet () {
+    if(!receiving) return;
+    receiving = false;
+    files.execute(new Runnable() {@Override public void run() {
+      discardPart();
+    }});
+  }
+
+  private void discardPart () {
+    try {
+      if(output != null) output.close();
+      if(partPath != null) Files.deleteIfExists(partPath);
+    }
+    catch (IOException e) {
+      Printer.errorLn("Could not remove " + partPath);
+    }
+    output = null;
+  }
+
+  private boolean finishGet (long length) {
+    if(output == null) return false;
+
+    boolean written = !writeFailed;
+    try {
+      if(isPositioned()) output.truncate(length);
+      else {
+        long position = 0;
+        for(byte[] data: receivedPackets.values()) {
+          written = written && write(ByteBuffer.wrap(data), position);
+          position += data.length;
+        }
+        receivedPackets.clear();
+      }
+      output.close();
+      Files.move(partPath, outputPath, StandardCopyOption.REPLACE_EXISTING);
+      p.logStatus("created file at " + outputPath);
+    }
+    catch (IOException e) {
+      Printer.errorLn("Could not finish writing " + outputPath);
+      written = false;
+    }
+
+    output = null;
+    return written;
+  }
+
+  private boolean write (ByteBuffer data, long offset) {
+    try {
+      while(data.hasRemaining())
+        offset += output.write(data, offset);
+      return true;
+    }
+    catch (IOException e) {
+      Printer.errorLn("Could not write to " + partPath);
+      return false;
+    }
+  }
+
+  private boolean isPositioned () {
+    return factory.getVersion() >= RTPHeader.VERSION_2;
+  }
+
+  private boolean isSelective () {
+    return isPositioned() && factory.hasFeature(HandshakeOptions.FEATURE_SACK);
+  }
+
+  /**
+  * offsetOf recovers a DATA packet's 64-bit offset from the low 32 bits its
+  * header carries, using the highest offset received so far
+  */
+
+  private long offsetOf (RTPPacket packet) {
+    return Serial.extend(packet.getSeqNum(), recvHighest);
   }
 
-  public byte[] getData () {
-    return RTPUtil.buildDataFromHash(recvDataBytes, receivedPackets);
+  private long lengthOf (RTPPacket datafin) {
+    if(datafin.getDataSize() == Long.BYTES) return RTPUtil.longFromByte(datafin.getData());
+    return offsetOf(datafin);
+  }
+
+  /**
+  * isReceived tells whether every byte a DATAFIN announces has arrived, so
+  * a repeated DATAFIN left over from an earlier transfer can't end this one
+  * early. Version 1 transfers carry no length and are taken at their word.
+  *
+  * Parameters: DATAFIN packet
+  * Returns: boolean
+  */
+
+  public boolean isReceived (RTPPacket datafin) {
+    if(!isPositioned()) return true;
+    return recvDataBytes > 0 && receivedRanges.reach(0) >= lengthOf(datafin);
+  }
+
+  public boolean isGetComplete () {
+    return getComplete;
   }
 
   //============================================================================
   // Post methods
   //============================================================================
 
+  /**
+  * setCongestionControl picks the controller this service's posts use
+  */
+
+  public void setCongestionControl (Congestion control) {
+    this.congestionControl = control;
+  }
+
   public void startPost (byte[] data, String filename) {
+    startPost(Payload.wrap(data), filename);
+  }
+
+  public void startPost (Payload data, String filename) {
     if(postComplete) return;
     postComplete = false;
     postFilename = filename;
+    postLength = data.length();
+    postData = data;
     unackedBytes = 0;
-    acked = new HashMap<Integer, Boolean>();
-    timeSent = new HashMap<Integer, Long>();
-    sentPackets = new HashMap<Integer, RTPPacket>();
-    packetsToSend = packetize(data);
-    sendData();
+    retransmits = new TimerWheel(WHEEL_SLOTS, WHEEL_TICK, new TimerWheel.Expiry() {
+      @Override public void expired(long key) { retransmit(key); }
+    });
+    timedOut = new TreeMap<Long, Segment>();
+    timedOutBytes = 0;
+    sentTo = 0;
+    datafin = null;
+    datafinAcked = false;
+    nextPacket = null;
+    awaitingWrite = false;
+    segments = packetize(data);
+    segmentSize = segments.getSegmentSize();
+    congestion = congestionControl.create(segmentSize + factory.getDataHeaderSize());
+    recoverPoint = -1;
+    timeoutPoint = -1;
+    highestAcked = -1;
+    // published last: handleAck, on the event loop, starts from sentPackets
+    sentPackets = new ConcurrentSkipListMap<Long, Segment>();
+    sending = true;
+    p.logStatus("starting estimated " + factory.getEstimator());
+    tick();
+    mailman.schedule(0, new Runnable() {@Override public void run() {
+      sendData();
+    }});
   }
 
-  private HashMap<Integer, RTPPacket> packetize (byte[] data) {
-    HashMap<Integer, RTPPacket> toReturn = new HashMap<Integer, RTPPacket>();
-
-    RTPPacket[] dataPackets = factory.packageBytes(data);
-    for(RTPPacket p : dataPackets)
-      toReturn.put(p.getSeqNum(), p);
-
-    p.logStatus("sending " + postFilename + " as " + toReturn.size() + " packets");
-    return toReturn;
+  private SegmentSource packetize (Payload data) {
+    SegmentSource source = factory.createSegments(data);
+    p.logStatus("sending " + postFilename + " as " + source.getSegmentCount() + " packets");
+    return source;
   }
 
+  /**
+  * sendData runs on the event loop, when the post starts, after each ACK and
+  * whenever the socket has room again, and pulls packets from the segment
+  * source only as the window lets them out; sentPackets holds just the
+  * unacknowledged ones, so memory is bounded by the window rather than the
+  * payload. It is the sender's scoreboard: packets are keyed by their 64-bit
+  * offset on version 2 connections (their sequence number on version 1),
+  * and an ACK removes every packet it covers.
+  *
+  * Lost packets are found from the ACK stream first: detectLoss resends a
+  * packet as soon as enough data sent after it has been acknowledged. Every
+  * packet sent is also filed in the retransmits wheel, and a packet still on
+  * the scoreboard when its timer runs out is sent again as the window allows.
+  *
+  * New packets go out while the bytes in flight fit both the congestion
+  * controller's window and the receiver's. A packet the socket has no room
+  * for is held in nextPacket until whenWritable calls sendData again. Once
+  * every packet is acknowledged the DATAFIN follows.
+  */
+
   private void sendData () {
-    new Thread(new Runnable() {@Override public void run() {
-      Object[] packetList = packetsToSend.values().toArray();
-      p.logStatus("starting estimated RTT " + factory.getRTT());
-      for(Object p : packetList)
-        sendPacket((RTPPacket) p, false);
-      while(!postComplete) {
-        postComplete = resendUnacked();
-      }
-      p.logStatus("end estimated RTT " + factory.getRTT());
-      sendDataFin();
-      p.logStatus("POST complete for " + postFilename);
-    }}).start();
-  }
+    if(segments == null) {
+      if(sending && sentPackets.isEmpty()) endData();
+      return;
+    }
+    if(awaitingWrite) return;
 
-  private void sendPacket(RTPPacket packet, boolean isResend) {
-  //  int windowFull = 0, windowOpen = 0;
     for(;;) {
-      int bytesOut;
-      if(!isResend) bytesOut = unackedBytes + packet.getSize();
-      else bytesOut = unackedBytes;
-      boolean recvWindowFull = (bytesOut > recvWindow);
-
-      if(!recvWindowFull) {
-    //    decreaseRTT();
-    //    windowFull = 0; windowOpen++;
-        mailman.send(packet);
-        timeSent.put(packet.getSeqNum(), System.currentTimeMillis());
-
-        if(!isResend) {
-          sentPackets.put(packet.getSeqNum(), packet);
-          unackedBytes += packet.getSize();
-        }
-
-        p.logSend("sent packet " + packet.getSeqNum(), unackedBytes);
+      if(nextPacket == null) {
+        if(!segments.hasNext()) break;
+        nextPacket = stamp(segments.next(), 0);
+      }
+      if(unackedBytes > 0 && unackedBytes + nextPacket.getSize() > sendWindow()) {
+        p.logInfo("send window full");
         return;
       }
+      if(!sendPacket(nextPacket)) return;
+      nextPacket = null;
+    }
 
-      else {
-        // windowFull++;
-        //
-        // if(windowFull >= 2) {
-        //   windowFull = 0;
-        //   increaseRTT();
-        // }
-
-        p.logInfo("receiver window full");
-        if(!isResend) resendUnacked();
-      }
+    segments = null;
+    if(sentPackets.isEmpty()) endData();
+  }
+
+  private void endData () {
+    sending = false;
+    p.logStatus("end estimated " + factory.getEstimator());
+    sendDataFin();
+  }
+
+  /**
+  * sendPacket files a packet on the scoreboard and sends it, or leaves it
+  * for later if the socket's send buffer is full. The packet is stamped
+  * first, since a timestamp grows its header, so the size charged to the
+  * bytes in flight is the size acked() later gives back.
+  *
+  * Parameters: RTPPacket
+  * Returns: whether it was sent
+  */
+
+  private boolean sendPacket(RTPPacket packet) {
+    stamp(packet, 0);
+    if(!mailman.offer(packet, factory.getPeer())) {
+      awaitingWrite = true;
+      mailman.whenWritable(new Runnable() {@Override public void run() {
+        awaitingWrite = false;
+        sendData();
+      }});
+      return false;
     }
+
+    Segment segment = new Segment(keyOf(packet.getSeqNum()), packet);
+    sentPackets.put(segment.key, segment);
+    unackedBytes += segment.size;
+    sentTo = Math.max(sentTo, segment.key);
+
+    sent(segment, true);
+    p.logSend("sent packet " + packet.getSeqNum(), unackedBytes);
+    return true;
+  }
+
+  /**
+  * transmit sends a segment and restarts its timer, doubling the timeout
+  * for each time the timer has already run out. A segment has one timer in
+  * the wheel at a time: a fast retransmit only pushes its deadline back, and
+  * retransmit files the timer again when it finds that.
+  *
+  * Parameters: Segment, whether to file a new timer
+  * Returns: -
+  */
+
+  private void transmit(Segment segment, boolean arm) {
+    stamp(segment.packet, 0);
+    mailman.send(segment.packet, factory.getPeer());
+    sent(segment, arm);
+  }
+
+  private void sent(Segment segment, boolean arm) {
+    long timeout = retransmitTimeout() << Math.min(segment.backoff, MAX_BACKOFF);
+    long now = now();
+    segment.sentAt = System.nanoTime();
+    segment.due = now + timeout;
+    segment.sends++;
+    if(arm) retransmits.schedule(segment.key, timeout, now);
   }
 
-  // private void increaseRTT() {
-  //   //p.logStatus("RTT was " + factory.getRTT());
-  //   long newRTT = (long) (factory.getRTT() * 2;
-  //   //p.logStatus("new RTT " + newRTT);
-  //
-  //   factory.setRTT(newRTT);
-  //   float secRTT = (float) factory.getRTT()/1000;
-  //   p.logStatus("adjusted connection RTT delay to " + secRTT);
-  // }
-  //
-  // private void decreaseRTT() {
-  //   long newRTT = (long) (factory.getRTT() * .99);
-  //   factory.setRTT(newRTT);
-  //   float secRTT = (float) factory.getRTT()/1000;
-  //   p.logError("adjusted connection RTT delay to " + secRTT);
-  // }
-
-  private boolean resendUnacked() {
-    stall();
-
-    boolean allAcked = true;
-    Object[] packetList = sentPackets.values().toArray();
-    for(Object p: packetList) {
-      RTPPacket packet = (RTPPacket) p;
-      boolean unacked = !(acked.get(packet.getSeqNum()) != null);
-      if(unacked) {
-        sendPacket(packet, true);
-        allAcked = false;
+  /**
+  * retransmit runs on the event loop when a segment's timer runs out. A
+  * segment acknowledged since is forgotten; one whose deadline was pushed
+  * back since the timer was filed is filed again for the rest. Otherwise the
+  * segment is taken as lost and queued in timedOut, for resendTimedOut to
+  * send as the window allows.
+  */
+
+  private void retransmit(long key) {
+    Segment segment = sentPackets.get(key);
+    if(segment == null) return;
+
+    long now = now();
+    if(segment.due > now) {
+      retransmits.schedule(key, segment.due - now, now);
+      return;
+    }
+
+    if(segment.key > timeoutPoint) {
+      congestion.onTimeout(unackedBytes, System.nanoTime());
+      timeoutPoint = sentTo;
+      recoverPoint = sentTo;
+    }
+
+    segment.backoff++;
+    if(segment.backoff >= PATH_FALLBACK && isOversized(segment)) {
+      fallBack();
+      return;
+    }
+
+    timedOut.put(key, segment);
+    timedOutBytes += segment.size;
+    resendTimedOut();
+  }
+
+  private boolean isOversized (Segment segment) {
+    return isPositioned() && segment.size + Mailman.STAMP_SIZE > Mailman.SAFE_DATAGRAM;
+  }
+
+  /**
+  * fallBack drops the connection's path limit back to SAFE_DATAGRAM, in
+  * case the path a probe measured has stopped carrying bigger datagrams.
+  * Every segment in flight was the old size and is taken as lost, and the
+  * post resumes from the lowest unacknowledged offset in segments that fit.
+  */
+
+  private void fallBack () {
+    p.logInfo("repeated timeouts... falling back to " + Mailman.SAFE_DATAGRAM + " byte datagrams");
+    factory.setPathLimit(Mailman.SAFE_DATAGRAM);
+    long resume = sentPackets.firstKey();
+    segments = factory.createSegments(postData);
+    segments.seek(resume);
+    segmentSize = segments.getSegmentSize();
+
+    sentPackets.clear();
+    timedOut.clear();
+    timedOutBytes = 0;
+    unackedBytes = 0;
+    nextPacket = null;
+    sendData();
+  }
+
+  /**
+  * resendTimedOut sends timed out segments again, lowest first, while the
+  * bytes in flight fit the send window. Segments waiting here have left the
+  * network, so they do not count as in flight; at least one is always sent
+  * when nothing else is. A timeout cuts the window, so after a whole window
+  * is lost the segments go out as ACKs make room rather than all at once.
+  * It runs on the event loop, after each timeout and each ACK.
+  */
+
+  private void resendTimedOut() {
+    while(!timedOut.isEmpty()) {
+      Segment segment = timedOut.firstEntry().getValue();
+      long inFlight = unackedBytes - timedOutBytes;
+      if(inFlight > 0 && inFlight + segment.size > sendWindow()) return;
+
+      timedOut.remove(segment.key);
+      timedOutBytes -= segment.size;
+      p.logInfo("retransmitting packet " + segment.packet.getSeqNum());
+      transmit(segment, true);
+    }
+  }
+
+  /**
+  * detectLoss runs after each ACK that clears segments from the scoreboard
+  * and resends at once every packet with more than DUP_THRESH - 1 segments'
+  * worth of later data acknowledged above it, rather than leaving it to its
+  * timer: on SACK connections that is a hole below the SACKed ranges, on
+  * others the per-packet ACKs of the packets sent after it. Each packet is
+  * fast retransmitted once; if that copy is lost too, its timer resends it.
+  *
+  * The first loss in a window starts recovery: the congestion controller
+  * hears of it once, and losses among the packets already sent by then are
+  * only resent until the ACKs pass recoverPoint. Throughout, the bytes in
+  * flight count just the packets neither acknowledged nor SACKed, so each ACK
+  * that reports data has left the network lets new packets out and the pipe
+  * stays full while the holes are repaired.
+  */
+
+  private void detectLoss () {
+    for(Segment segment: sentPackets.headMap(highestAcked).values()) {
+      long end = segment.key + segment.packet.getDataSize();
+      if(highestAcked - end <= (long) (DUP_THRESH - 1) * segmentSize) break;
+      if(segment.lost || timedOut.containsKey(segment.key)) continue;
+
+      if(segment.key > recoverPoint) {
+        congestion.onLoss(unackedBytes, System.nanoTime());
+        recoverPoint = sentTo;
+        p.logInfo("recovering up to " + recoverPoint);
       }
+
+      p.logInfo("fast retransmit of packet " + segment.packet.getSeqNum());
+      segment.lost = true;
+      transmit(segment, false);
     }
-    return allAcked;
+  }
+
+  private long retransmitTimeout() {
+    return Math.max(factory.getRTO(), WHEEL_TICK);
+  }
+
+  /**
+  * tick advances the retransmits wheel on the event loop every WHEEL_TICK
+  * while a post is sending
+  */
+
+  private void tick() {
+    mailman.schedule(WHEEL_TICK, new Runnable() {@Override public void run() {
+      retransmits.advance(now());
+      if(sending) tick();
+    }});
+  }
+
+  private long sendWindow() {
+    return Math.min(congestion.getWindow(), recvWindow);
+  }
+
+  private static long now() {
+    return System.nanoTime() / 1000000L;
   }
 
   public void handleAck (RTPPacket ack) {
-    int seqNum = ack.getAckNum();
-    RTPPacket ackedPacket = packetsToSend.get(seqNum);
+    if(sentPackets == null) {
+      ack.release();
+      return;
+    }
 
-    boolean isDuplicate = false;
-    if(acked.get(seqNum) != null) isDuplicate = true;
+    long acked = 0;
+    rttSample = 0;
+    if(ack.hasFlag(RTPHeader.FLAG_SACK)) acked = handleSack(ack);
+    else {
+      int seqNum = ack.getAckNum();
+      if(datafin != null && seqNum == datafinSeq) datafinAcked();
+
+      long key = keyOf(seqNum);
+      sampleRTT(key, ack);
+      acked = acked(key);
+      if(acked > 0) p.logReceive("ACK received " + seqNum);
+    }
 
-    if(!isDuplicate) {
-      p.logReceive("ACK received " + seqNum);
-      acked.put(seqNum, true);
+    if(acked > 0 && ack.hasFlag(RTPHeader.FLAG_TIMESTAMP) && ack.getTimestampEcho() != 0)
+      sampleRTT(timestamp() - ack.getTimestampEcho());
+    if(acked > 0) {
+      congestion.onAck(acked, rttSample, unackedBytes, System.nanoTime());
+      detectLoss();
+      resendTimedOut();
+    }
 
-      Long timeOut = timeSent.get(seqNum);
-      if(timeOut != null) {
-        long delay = System.currentTimeMillis() - timeOut;
-        updateRTT(delay);
-      }
+    ack.release();
+    sendData();
+  }
 
-      if(ackedPacket != null)
-        unackedBytes -= ackedPacket.getSize();
+  /**
+  * handleSack clears every packet below the cumulative point and every
+  * packet lying wholly inside one of the listed ranges from the scoreboard
+  *
+  * Parameters: SACK packet
+  * Returns: bytes the packets cleared had charged to the bytes in flight
+  */
+
+  private long handleSack (RTPPacket ack) {
+    ByteBuffer sack = ack.getPayload();
+    if(sack.remaining() < Integer.BYTES) return 0;
+
+    long echoed = keyOf(sack.getInt());
+    sampleRTT(echoed, ack);
+
+    long cumulative = keyOf(ack.getAckNum());
+    long released = 0;
+    for(Long key: sentPackets.headMap(cumulative).keySet()) released += acked(key);
+
+    while(sack.remaining() >= 2 * Integer.BYTES) {
+      long start = keyOf(sack.getInt());
+      long end = keyOf(sack.getInt());
+      for(Segment sent: sentPackets.subMap(start, end).values())
+        if(sent.key + sent.packet.getDataSize() <= end) released += acked(sent.key);
     }
+    p.logReceive("SACK received up to " + cumulative);
+    return released;
   }
 
-  public void sendDataFin() {
-    RTPPacket datafin = factory.createDATAFIN();
+  /**
+  * acked clears one packet from the scoreboard. The bytes it returns are
+  * counted here so handleAck can tell the congestion controller how much
+  * one ACK released.
+  *
+  * Parameters: scoreboard key
+  * Returns: bytes the packet had charged to the bytes in flight, 0 if it was
+  *          not on the scoreboard
+  */
+
+  private int acked (long key) {
+    Segment acked = sentPackets.remove(key);
+    if(acked == null) return 0;
+    unackedBytes -= acked.size;
+    if(timedOut.remove(key) != null) timedOutBytes -= acked.size;
+    highestAcked = Math.max(highestAcked, key + acked.packet.getDataSize());
+    return acked.size;
+  }
 
-    for(;;) {
-      p.logSend("sending DATAFIN packet", datafin.getSeqNum());
-      mailman.send(datafin);
+  /**
+  * sampleRTT times the ACK of a segment still on the scoreboard. Following
+  * Karn's rule, a segment sent more than once gives no sample. ACKs that
+  * echo a timestamp are timed from the echo instead, by handleAck.
+  */
+
+  private void sampleRTT (long key, RTPPacket ack) {
+    if(ack.hasFlag(RTPHeader.FLAG_TIMESTAMP)) return;
+    Segment sent = sentPackets.get(key);
+    if(sent == null || sent.sends != 1) return;
+    rttSample = System.nanoTime() - sent.sentAt;
+    factory.sampleRTT(rttSample);
+    p.logInfo("estimated " + factory.getEstimator());
+  }
 
-      RTPUtil.stall();
+  /**
+  * Parameters: round trip in microseconds, from a timestamp echo
+  */
 
-      if(acked.get(datafin.getSeqNum()) != null) {
-        p.logStatus("received DATAFIN confirmation");
-        postComplete = true;
-        return;
-      }
+  private void sampleRTT (int micros) {
+    rttSample = Math.max(micros, 1) * 1000L;
+    factory.sampleRTT(rttSample);
+    p.logInfo("estimated " + factory.getEstimator());
+  }
+
+  /**
+  * keyOf turns a sequence number from the wire into its scoreboard key: the
+  * 64-bit offset nearest the last one sent on version 2 connections
+  */
 
-      p.logInfo("no response to DATAFIN... resending");
+  private long keyOf (int seqNum) {
+    if(isPositioned()) return Serial.extend(seqNum, sentTo);
+    return seqNum;
+  }
+
+  /**
+  * sendDataFin repeats the DATAFIN every 100 milliseconds on the event loop
+  * until handleAck sees it acknowledged. It is timestamped like DATA, so the
+  * receiver can tell DATA sent before it from the next transfer's.
+  */
+
+  private void sendDataFin() {
+    if(datafin == null) {
+      datafin = factory.createDATAFIN(postLength);
+      datafinSeq = datafin.getSeqNum();
     }
+    else if(datafinAcked) return;
+    else p.logInfo("no response to DATAFIN... resending");
 
+    p.logSend("sending DATAFIN packet", datafin.getSeqNum());
+    mailman.send(stamp(datafin, 0), factory.getPeer());
+    mailman.schedule(100, new Runnable() {@Override public void run() {
+      sendDataFin();
+    }});
   }
 
-  private void updateRTT(long newDelay) {
-    long oldDelay = factory.getRTT();
-    long newRTT = (long) ((.8*oldDelay) + (.2*newDelay));
-    factory.setRTT(newRTT);
-    p.logInfo("estimated RTT " + newRTT);
+  private void datafinAcked() {
+    if(datafinAcked) return;
+    datafinAcked = true;
+    postComplete = true;
+    p.logStatus("received DATAFIN confirmation");
+    p.logStatus("POST complete for " + postFilename);
   }
 
   public boolean isPostComplete() {
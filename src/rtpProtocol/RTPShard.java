@@ -0,0 +1,440 @@
+package rtpProtocol;
+
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import rtpPacket.*;
+import util.*;
+
+/**
+ * RTPShard is one of an RTPServer's receive shards: a socket with its own
+ * event loop and session table. A connection lives on the shard that
+ * accepted it for its whole life, and its ID carries that shard's index, so
+ * no two shards ever touch the same session. Within a shard every Session
+ * has its own switchboard, whose handlers run as each packet is decoded.
+ */
+
+class RTPShard {
+
+  static final int SHARD_BITS = 8;
+  static final int MAX_SHARDS = 1 << SHARD_BITS;
+
+  /**
+  * SYNACKs and FINACKs are repeated every RESEND_DELAY milliseconds, at most
+  * MAX_RESENDS times before the client is given up on
+  */
+
+  static final long RESEND_DELAY = 200;
+  static final int MAX_RESENDS = 50;
+
+  private Printer p;
+
+  private final RTPServer server;
+  private final int index;
+
+  private Mailman mailman;
+
+  private String sIP, pathway, output;
+  private int sPort, window;
+
+  private IntTable<Session> sessions;
+  private ConcurrentHashMap<String, Integer> addresses;
+  private int nextConnectionId;
+
+  RTPShard (RTPServer server, int index, int sPort, boolean sharedPort) {
+    this.server = server;
+    this.index = index;
+    this.sPort = sPort;
+    this.sIP = RTPUtil.getIPAddress();
+    this.window = server.getWindow();
+    this.pathway = server.getPathway();
+    this.output = server.getOutput();
+    this.sessions = new IntTable<Session>();
+    this.addresses = new ConcurrentHashMap<String, Integer>();
+    this.nextConnectionId = 0;
+
+    p = new Printer(false);
+    mailman = new Mailman(sPort, sIP, Mailman.MAX_DATAGRAM, sharedPort);
+  }
+
+  void start () {
+    receivePackets();
+  }
+
+  int getIndex () { return this.index; }
+
+  int getPort () { return this.sPort; }
+
+  /**
+  * receivePackets hands every packet to the mailman's event loop, which
+  * routes it through its session's switchboard right away. SYNs are passed
+  * to the loop of the shard that will own them; packets for no known
+  * session are dropped, as are packets whose connection ID names another
+  * shard, so a session is only ever touched by the shard that owns it.
+  */
+
+  private void receivePackets () {
+    p.logStatus("shard " + index + " receiving at " + sIP + ":" + sPort + " with window size " + window);
+    mailman.listen(new Recipient() {@Override public void deliver(RTPPacket in) {
+      if(in.isType(State.SYN)) {
+        server.shardFor(in, RTPShard.this).accept(in);
+        return;
+      }
+
+      int key = connectionOf(in);
+      Session session = (shardOf(key) == index) ? sessions.get(key) : null;
+      if(session == null) {
+        in.release();
+        return;
+      }
+
+      session.getSwitchboard().route(in);
+    }});
+  }
+
+  //============================================================================
+  // Establish connection methods
+  //============================================================================
+
+  /**
+  * accept hands a SYN, which may have been received by another shard, to
+  * this shard's event loop, where the whole handshake runs
+  */
+
+  void accept (RTPPacket syn) {
+    mailman.schedule(0, new Runnable() {@Override public void run() {
+      acceptConnection(syn);
+    }});
+  }
+
+  private void acceptConnection (RTPPacket syn) {
+    Session session = createConnection(syn);
+    if(session == null) {
+      syn.release();
+      return;
+    }
+
+    p.logStatus("received a connection request");
+    String client = syn.hash();
+    RTPPacket synack = session.getFactory().createSYNACK(syn, session.getKey());
+    syn.release();
+    sendSYNACK(session, synack, client, 0);
+  }
+
+  /**
+  * createConnection claims the SYN's address before building its session,
+  * so a repeated SYN from a client already connecting is dropped
+  */
+
+  private Session createConnection(RTPPacket syn) {
+    int key = nextConnectionId();
+    if(addresses.putIfAbsent(syn.hash(), key) != null) return null;
+
+    int recvWindow = syn.getWindowSize();
+    PacketFactory factory = new PacketFactory(sPort, sIP, window, recvWindow);
+    factory.setReceiveLimit(mailman.getReceiveLimit());
+
+    Session session = new Session(key, factory);
+    register(session);
+    sessions.put(key, session);
+    return session;
+  }
+
+  /**
+  * register installs a session's packet handlers. The END handler is added
+  * by handleFin, once the client has asked to close.
+  */
+
+  private void register (Session session) {
+    Switchboard switchboard = session.getSwitchboard();
+    switchboard.on(State.SYNFIN, new Recipient() {@Override public void deliver(RTPPacket in) {
+      handleSynFin(session, in);
+    }});
+    switchboard.on(State.PROBE, new Recipient() {@Override public void deliver(RTPPacket in) {
+      answerProbe(session, in);
+    }});
+    switchboard.on(State.GET, new Recipient() {@Override public void deliver(RTPPacket in) {
+      handleGet(session, in);
+    }});
+    switchboard.on(State.ACK, new Recipient() {@Override public void deliver(RTPPacket in) {
+      handleAck(session, in);
+    }});
+    switchboard.on(State.DATA, new Recipient() {@Override public void deliver(RTPPacket in) {
+      handleData(session, in);
+    }});
+    switchboard.on(State.DATAFIN, new Recipient() {@Override public void deliver(RTPPacket in) {
+      handleDataFin(session, in);
+    }});
+    switchboard.on(State.FIN, new Recipient() {@Override public void deliver(RTPPacket in) {
+      handleFin(session, in);
+    }});
+  }
+
+  /**
+  * Connection IDs carry the shard's index in their low SHARD_BITS bits
+  */
+
+  private synchronized int nextConnectionId () {
+    int id;
+    do {
+      nextConnectionId = (nextConnectionId + 1) & (Integer.MAX_VALUE >> SHARD_BITS);
+      id = (nextConnectionId << SHARD_BITS) | index;
+    }
+    while (nextConnectionId == 0 || sessions.containsKey(id));
+    return id;
+  }
+
+  static int shardOf (int connectionId) {
+    return connectionId & (MAX_SHARDS - 1);
+  }
+
+  /**
+  * connectionOf resolves the connection a packet belongs to. Version 2
+  * packets carry the ID handed out in the SYNACK; version 1 peers are
+  * looked up by address.
+  */
+
+  private int connectionOf (RTPPacket in) {
+    if(in.getVersion() >= RTPHeader.VERSION_2) return in.getConnectionId();
+    Integer key = addresses.get(in.hash());
+    return (key == null) ? 0 : key;
+  }
+
+  /**
+  * sendSYNACK repeats the SYNACK on a timer until handleSynFin sees the
+  * handshake finished, and drops the session if the client never answers
+  */
+
+  private void sendSYNACK (Session session, RTPPacket synack, String client, int sends) {
+    PacketFactory factory = session.getFactory();
+    if(factory.isConnected() || session.isClosed()) return;
+    if(sends == MAX_RESENDS) {
+      p.logError("no SYNFIN from " + client + "... dropping connection");
+      endConnection(session, client);
+      return;
+    }
+    if(sends > 0) p.logInfo("no response to SYNACK... resending");
+
+    mailman.send(synack, factory.getPeer());
+    p.logStatus("sent connection confirmation");
+    mailman.schedule(RESEND_DELAY, new Runnable() {@Override public void run() {
+      sendSYNACK(session, synack, client, sends + 1);
+    }});
+  }
+
+  private void handleSynFin (Session session, RTPPacket synfin) {
+    PacketFactory factory = session.getFactory();
+    if(!factory.isConnected()) {
+      factory.setConnected(true);
+      long RTT = RTPUtil.longFromByte(synfin.getData());
+      if(RTT > 0) factory.sampleRTT(RTT * 1000000L);
+      float secRTT = (float) RTT/1000;
+      p.logStatus("received RTT probe of " + secRTT + " seconds");
+      p.logStatus("connected to client at " + synfin.hash());
+    }
+    synfin.release();
+  }
+
+  /**
+  * answerProbe echoes a client's path probe. A probe that got here says
+  * nothing of datagrams going the other way, so the first one starts the
+  * shard probing the client instead, and only a probe of its own the client
+  * echoes back, with no padding, raises the connection's path limit.
+  */
+
+  private void answerProbe (Session session, RTPPacket probe) {
+    PacketFactory factory = session.getFactory();
+    if(probe.getDataSize() == 0) {
+      Integer size = session.getProbes().remove(probe.getAckNum());
+      if(size != null) factory.notePathProbe(size);
+      probe.release();
+      return;
+    }
+
+    mailman.send(factory.createPROBEACK(probe), factory.getPeer());
+    probe.release();
+    if(session.startProbing()) probePath(session);
+  }
+
+  private void probePath (Session session) {
+    PacketFactory factory = session.getFactory();
+    for(int size : RTPClient.PROBE_SIZES) {
+      if(size > factory.getPeerLimit()) continue;
+      RTPPacket probe = factory.createPROBE(size);
+      session.getProbes().put(probe.getSeqNum(), size);
+      mailman.send(probe, factory.getPeer());
+    }
+  }
+
+  //============================================================================
+  // Data post methods
+  //============================================================================
+
+  /**
+  * handleGet starts serving a GET unless the session is still serving the
+  * last one, in which case it is a retransmission and is dropped. Mapping
+  * the file touches the disk, so it is done on the session's file executor;
+  * GETs are taken there in order, so a retransmission always sees the post
+  * the first one started.
+  */
+
+  private void handleGet (Session session, RTPPacket get) {
+    String filename = new String(get.getData());
+    get.release();
+
+    session.getFiles().execute(new Runnable() {@Override public void run() {
+      serveGet(session, filename);
+    }});
+  }
+
+  private void serveGet (Session session, String filename) {
+    RTPService existing = session.getPostProcess();
+    if(existing != null && !existing.isPostComplete()) return;
+
+    p.logStatus("received a GET request for " + filename);
+
+    Payload data = RTPUtil.mapFile(filename, pathway);
+    if(data != null) {
+      RTPService postProcess = server.createService(mailman, session.getFactory());
+
+      session.setPostProcess(postProcess);
+      postProcess.startPost(data, filename);
+    }
+    else {
+      p.logError("requested file " + filename + " does not exist at " + pathway);
+    }
+  }
+
+  private void handleAck (Session session, RTPPacket ack) {
+    RTPService post = session.getPostProcess();
+    if(post != null) post.handleAck(ack);
+    else ack.release();
+  }
+
+  //============================================================================
+  // Data get methods
+  //============================================================================
+
+  /**
+  * handleData passes DATA to the session's GET, starting one if there is
+  * none, unless it is a late copy of DATA the last GET already finished
+  * with: that is acknowledged again and dropped, rather than opening a new
+  * part file nothing will ever complete
+  */
+
+  private void handleData (Session session, RTPPacket data) {
+    RTPService getProcess = session.getGetProcess();
+    RTPService lastGet = session.getLastGet();
+    if(getProcess != null)
+      getProcess.handleData(data);
+    else if(lastGet != null && lastGet.isLate(data))
+      lastGet.handleData(data);
+    else
+      createGetProcess(session, data);
+  }
+
+  /**
+  * handleDataFin finishes the session's GET on its first DATAFIN and
+  * acknowledges every DATAFIN, since a repeat means the last ACK was lost
+  */
+
+  private void handleDataFin (Session session, RTPPacket datafin) {
+    PacketFactory factory = session.getFactory();
+    RTPService getProcess = session.getGetProcess();
+    if(getProcess != null && getProcess.isReceived(datafin)) endGet(session, datafin);
+
+    p.logStatus("updating client with GET completed status");
+    mailman.send(factory.createACK(datafin), factory.getPeer());
+    datafin.release();
+  }
+
+  private void createGetProcess (Session session, RTPPacket data) {
+    p.logStatus("incoming DATA from " + data.hash());
+
+    RTPService getProcess = server.createService(mailman, session.getFactory());
+    getProcess.setFileExecutor(session.getFiles());
+
+    session.setGetProcess(getProcess);
+    getProcess.startGet(Paths.get(output));
+    getProcess.handleData(data);
+  }
+
+  private void endGet(Session session, RTPPacket datafin) {
+    p.logStatus("GET process complete");
+    session.getGetProcess().endGet(datafin);
+    session.setLastGet(session.getGetProcess());
+    session.setGetProcess(null);
+  }
+
+  //============================================================================
+  // End connection methods
+  //============================================================================
+
+  /**
+  * handleFin answers the first FIN with a FINACK, repeated on a timer until
+  * the client's END arrives
+  */
+
+  private void handleFin (Session session, RTPPacket in) {
+    if(!session.startClosing()) {
+      in.release();
+      return;
+    }
+
+    RTPPacket finack = session.getFactory().createFINACK(in);
+    String client = in.hash();
+    in.release();
+    p.logStatus("received a request to terminate connection " + client);
+
+    session.getSwitchboard().on(State.END, new Recipient() {@Override public void deliver(RTPPacket end) {
+      end.release();
+      endConnection(session, client);
+    }});
+    sendFINACK(session, finack, client, 0);
+  }
+
+  private void sendFINACK (Session session, RTPPacket finack, String client, int sends) {
+    if(session.isClosed()) return;
+    if(sends == MAX_RESENDS) {
+      p.logError("no END from " + client + "... dropping connection");
+      endConnection(session, client);
+      return;
+    }
+
+    mailman.send(finack, session.getFactory().getPeer());
+    p.logStatus("confirming connection termination");
+    mailman.schedule(RESEND_DELAY, new Runnable() {@Override public void run() {
+      sendFINACK(session, finack, client, sends + 1);
+    }});
+  }
+
+  /**
+  * endConnection forgets a session, deleting the part file of a GET the
+  * client never finished
+  */
+
+  private void endConnection (Session session, String client) {
+    RTPService getProcess = session.getGetProcess();
+    if(getProcess != null) getProcess.abortGet();
+    if(!session.close()) return;
+    sessions.remove(session.getKey());
+    addresses.remove(client);
+    p.logStatus("connection terminated with " + client);
+  }
+
+  //============================================================================
+  // Testing methods
+  //============================================================================
+
+  void setLogging(boolean l) {
+    this.p = new Printer(l);
+    this.mailman.setLogging(l);
+  }
+
+  void setCorrupted(boolean c) {
+    this.mailman.setCorrupted(c);
+  }
+}
@@ -0,0 +1,30 @@
+package rtpProtocol;
+
+import rtpPacket.*;
+
+/**
+ * Segment is a DATA packet on the sender's scoreboard: when it was last sent
+ * (System.nanoTime), how many times, when its retransmission timer runs
+ * out (milliseconds on the same clock), how often that timer has run out,
+ * and whether the ACK stream has already shown it lost. size is what the
+ * packet was charged to the bytes in flight when it was filed. Segments are
+ * only touched on the event loop, which sends them, times them out and sees
+ * them acknowledged.
+ */
+
+class Segment {
+
+  final long key;
+  final RTPPacket packet;
+  final int size;
+
+  long sentAt, due;
+  int sends, backoff;
+  boolean lost;
+
+  Segment (long key, RTPPacket packet) {
+    this.key = key;
+    this.packet = packet;
+    this.size = packet.getSize();
+  }
+}
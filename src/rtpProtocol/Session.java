@@ -0,0 +1,107 @@
+package rtpProtocol;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import rtpPacket.*;
+
+/**
+ * Session is one client connection on a server shard: its packet factory,
+ * the services moving its data and a switchboard of its own. The shard's
+ * receive loop routes each packet to its session's handlers as soon as it is
+ * decoded, so a busy client can't queue work in front of anyone else's.
+ *
+ * The handlers must not block, so the session's disk work runs on its own
+ * file executor (RTPService.newFileExecutor).
+ */
+
+class Session {
+
+  private final int key;
+  private final PacketFactory factory;
+  private final Switchboard switchboard;
+  private final ThreadPoolExecutor files;
+  private final Map<Integer, Integer> probes;
+
+  private volatile RTPService postProcess, getProcess, lastGet;
+  private boolean closing, closed, probing;
+
+  Session (int key, PacketFactory factory) {
+    this.key = key;
+    this.factory = factory;
+    this.switchboard = new Switchboard();
+    this.files = RTPService.newFileExecutor();
+    this.probes = new HashMap<Integer, Integer>();
+  }
+
+  int getKey () { return this.key; }
+
+  PacketFactory getFactory () { return this.factory; }
+
+  Switchboard getSwitchboard () { return this.switchboard; }
+
+  Executor getFiles () { return this.files; }
+
+  RTPService getPostProcess () { return this.postProcess; }
+
+  void setPostProcess (RTPService post) { this.postProcess = post; }
+
+  RTPService getGetProcess () { return this.getProcess; }
+
+  void setGetProcess (RTPService get) { this.getProcess = get; }
+
+  /**
+  * The last GET to finish is kept so DATA it was sent arriving late can be
+  * told from the start of the next one
+  */
+
+  RTPService getLastGet () { return this.lastGet; }
+
+  void setLastGet (RTPService get) { this.lastGet = get; }
+
+  /**
+  * The path probes the shard has sent the client and not yet seen echoed,
+  * datagram size by sequence number. Only the shard's event loop uses them.
+  */
+
+  Map<Integer, Integer> getProbes () { return this.probes; }
+
+  /**
+  * startProbing returns true for the client's first path probe only, so the
+  * shard probes back once
+  */
+
+  synchronized boolean startProbing () {
+    if(probing) return false;
+    probing = true;
+    return true;
+  }
+
+  /**
+  * startClosing returns true for the first FIN only, so retransmitted FINs
+  * don't start a second teardown
+  */
+
+  synchronized boolean startClosing () {
+    if(closing) return false;
+    closing = true;
+    return true;
+  }
+
+  /**
+  * close stops the session's handlers and file executor. It returns true
+  * for the first call only, so the shard forgets the session once.
+  */
+
+  synchronized boolean close () {
+    if(closed) return false;
+    closed = true;
+    switchboard.clear();
+    files.shutdown();
+    return true;
+  }
+
+  synchronized boolean isClosed () { return this.closed; }
+}
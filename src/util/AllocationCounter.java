@@ -0,0 +1,56 @@
+package util;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * AllocationCounter measures the heap bytes the calling thread allocates
+ * between start() and stop(), accumulated over many events. Mailman wraps
+ * each receive in it so the bytes allocated per packet can be read off.
+ *
+ * Relies on HotSpot's per-thread allocation counter; where that is not
+ * available every measurement reads zero.
+ */
+
+public class AllocationCounter {
+
+  private static final com.sun.management.ThreadMXBean threads = threadBean();
+
+  private volatile long bytes;
+  private volatile long events;
+  private long mark;
+
+  public void start() {
+    mark = current();
+  }
+
+  public void stop() {
+    bytes += current() - mark;
+    events++;
+  }
+
+  public long getBytes() { return this.bytes; }
+
+  public long getEvents() { return this.events; }
+
+  public double bytesPerEvent() {
+    long n = events;
+    return (n == 0) ? 0 : (double) bytes / n;
+  }
+
+  private static long current() {
+    if(threads == null) return 0;
+    return threads.getCurrentThreadAllocatedBytes();
+  }
+
+  private static com.sun.management.ThreadMXBean threadBean() {
+    try {
+      com.sun.management.ThreadMXBean bean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+      if(!bean.isThreadAllocatedMemorySupported()) return null;
+      bean.setThreadAllocatedMemoryEnabled(true);
+      return bean;
+    } catch (ClassCastException | UnsupportedOperationException e) {
+      return null;
+    }
+  }
+}
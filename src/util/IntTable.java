@@ -0,0 +1,104 @@
+package util;
+
+/**
+ * IntTable maps int keys to values with open addressing and linear probing,
+ * so looking up a connection costs a multiply, a mask and a few array reads
+ * with no boxing and no garbage. Key 0 is reserved to mark empty slots.
+ *
+ * Methods are synchronized: tables are read by the receive thread and
+ * updated by the threads that open and close connections.
+ */
+
+public class IntTable<V> {
+
+  private static final int MIN_CAPACITY = 16;
+
+  private int[] keys;
+  private Object[] values;
+  private int size;
+
+  public IntTable() {
+    this.keys = new int[MIN_CAPACITY];
+    this.values = new Object[MIN_CAPACITY];
+    this.size = 0;
+  }
+
+  @SuppressWarnings("unchecked")
+  public synchronized V get(int key) {
+    if(key == 0) return null;
+    int mask = keys.length - 1;
+    for(int i = slot(key, mask); keys[i] != 0; i = (i + 1) & mask)
+      if(keys[i] == key) return (V) values[i];
+    return null;
+  }
+
+  public boolean containsKey(int key) {
+    return get(key) != null;
+  }
+
+  public synchronized void put(int key, V value) {
+    if(key == 0) throw new IllegalArgumentException("key 0 is reserved");
+    if((size + 1) * 4 > keys.length * 3) resize(keys.length * 2);
+
+    int mask = keys.length - 1;
+    int i = slot(key, mask);
+    while(keys[i] != 0 && keys[i] != key) i = (i + 1) & mask;
+
+    if(keys[i] == 0) size++;
+    keys[i] = key;
+    values[i] = value;
+  }
+
+  @SuppressWarnings("unchecked")
+  public synchronized V remove(int key) {
+    if(key == 0) return null;
+    int mask = keys.length - 1;
+    int i = slot(key, mask);
+    while(keys[i] != key) {
+      if(keys[i] == 0) return null;
+      i = (i + 1) & mask;
+    }
+
+    V removed = (V) values[i];
+    keys[i] = 0;
+    values[i] = null;
+    size--;
+
+    // shift later entries of the probe run back so lookups never stop early
+    for(int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+      int home = slot(keys[j], mask);
+      boolean movable = (j > i) ? (home <= i || home > j) : (home <= i && home > j);
+      if(movable) {
+        keys[i] = keys[j];
+        values[i] = values[j];
+        keys[j] = 0;
+        values[j] = null;
+        i = j;
+      }
+    }
+    return removed;
+  }
+
+  public synchronized int size() { return size; }
+
+  private void resize(int capacity) {
+    int[] oldKeys = keys;
+    Object[] oldValues = values;
+    keys = new int[capacity];
+    values = new Object[capacity];
+
+    int mask = capacity - 1;
+    for(int j = 0; j < oldKeys.length; j++) {
+      if(oldKeys[j] == 0) continue;
+      int i = slot(oldKeys[j], mask);
+      while(keys[i] != 0) i = (i + 1) & mask;
+      keys[i] = oldKeys[j];
+      values[i] = oldValues[j];
+    }
+  }
+
+  private static int slot(int key, int mask) {
+    int h = key * 0x9E3779B9;
+    return (h ^ (h >>> 16)) & mask;
+  }
+}
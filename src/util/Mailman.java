@@ -4,15 +4,27 @@ import java.net.*;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.BufferOverflowException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 
 import java.util.*;
 import java.nio.file.*;
-import java.util.zip.Adler32;
 import java.util.zip.Checksum;
 
 import rtpPacket.*;
 import util.*;
 
+/**
+ * Mailman owns a connection's socket. Sends may come from any thread; all
+ * receiving happens on one event loop started by listen(), which sleeps in a
+ * Selector, drains every datagram that is ready when it wakes, hands each
+ * undamaged packet to the Recipient on the spot, and runs any timers that
+ * have come due before sleeping again. Senders on the loop itself use offer
+ * and whenWritable, which never wait for a full socket buffer to empty.
+ */
+
 public class Mailman {
 
   private boolean logging;
@@ -22,15 +34,79 @@ public class Mailman {
   private final int CORRUPTION = 10;
   private final int MAX_DELAY = 50;
 
-  private DatagramSocket socket;
-  //private boolean open;
+  public static final int STAMP_SIZE = 8;
+  public static final int MAX_DATAGRAM = 65507;
+
+  /**
+  * SAFE_DATAGRAM is the largest UDP payload that fits a 1500 byte Ethernet
+  * frame unfragmented, the size used until a path probe shows more gets
+  * through
+  */
+
+  public static final int SAFE_DATAGRAM = 1472;
+  public static final int POOL_SIZE = 128;
+  public static final int SOCKET_BUFFER = 4 * 1024 * 1024;
+
+  private DatagramChannel channel;
+  private Selector selector;
+  private SelectionKey key;
+  private volatile boolean open, connected;
+  private final Checksum[] receiveStamps = createStamps();
+
+  private final int receiveLimit;
+  private final PacketPool pool;
+  private RTPPacket spare;
+  private final AllocationCounter receiveAllocations = new AllocationCounter();
+  private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+  private final List<Runnable> writers = new ArrayList<Runnable>();
+
+  private final ThreadLocal<Envelope> envelopes = new ThreadLocal<Envelope>() {
+    @Override protected Envelope initialValue() { return new Envelope(); }
+  };
 
   public Mailman (int sPort, String sIP) {
-    this.socket = RTPUtil.openSocket(sPort, sIP);
-  //  this.open = true;
+    this(sPort, sIP, MAX_DATAGRAM);
+  }
+
+  /**
+  * receiveLimit is the largest datagram this mailman can receive, stamp
+  * included. Connections advertise it in their SYN/SYNACK so the peer never
+  * sends anything bigger, and every pooled receive frame is this size.
+  */
+
+  public Mailman (int sPort, String sIP, int receiveLimit) {
+    this(sPort, sIP, receiveLimit, false);
+  }
+
+  /**
+  * sharedPort lets several mailmen bind the same port, one per server shard
+  */
+
+  public Mailman (int sPort, String sIP, int receiveLimit, boolean sharedPort) {
+    this.channel = RTPUtil.openChannel(sPort, sIP, sharedPort);
     this.p = new Printer(false);
+    this.receiveLimit = receiveLimit;
+    this.pool = new PacketPool(POOL_SIZE, receiveLimit);
+
+    try {
+      channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+      channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER);
+    } catch (IOException e) {
+      p.logError("could not size socket buffers");
+    }
+
+    try {
+      this.selector = Selector.open();
+      this.key = channel.register(selector, SelectionKey.OP_READ);
+      this.open = true;
+    } catch (IOException e) {
+      Printer.errorLn("Could not open selector");
+      System.exit(0);
+    }
   }
 
+  public int getReceiveLimit () { return this.receiveLimit; }
+
   public void setLogging (boolean logging) {
     this.logging = logging;
     this.p = new Printer(logging);
@@ -44,97 +120,169 @@ public class Mailman {
   // Send methods
   //============================================================================
 
-  public void send (RTPPacket in) {
-    DatagramPacket toSend = prepare(in);
-    if (corrupted) unreliableSend(toSend);
-    else sendNormal(toSend);
+  /**
+  * send stamps a packet and sends it to a peer address its connection
+  * resolved once up front. The address is ignored once the mailman is
+  * connected.
+  *
+  * Parameters: RTPPacket, resolved peer address
+  * Returns: -
+  */
+
+  public void send (RTPPacket in, SocketAddress to) {
+    Envelope envelope = envelopes.get();
+    prepare(in, envelope);
+    if (corrupted) unreliableSend(envelope.buff, to);
+    else sendNormal(envelope.buff, to);
   }
 
-  private DatagramPacket prepare (RTPPacket in) {
-    byte[] bytes = in.toBytes();
-    bytes = stamp(bytes);
+  /**
+  * offer sends a packet like send, but tries only once: it returns false,
+  * having sent nothing, when the socket's send buffer is full, so a sender on
+  * the event loop can ask whenWritable to run it again once there is room
+  *
+  * Parameters: RTPPacket, resolved peer address
+  * Returns: whether the packet left (corrupted mailmen always take it)
+  */
+
+  public boolean offer (RTPPacket in, SocketAddress to) {
+    Envelope envelope = envelopes.get();
+    prepare(in, envelope);
+    if(corrupted) {
+      unreliableSend(envelope.buff, to);
+      return true;
+    }
+    return trySend(envelope.buff, to);
+  }
 
-    if(corrupted) bytes = corrupt(bytes);
+  /**
+  * connect ties the socket to a single peer, for mailmen that only ever talk
+  * to one. Sends then skip the per-datagram address checks and datagrams from
+  * anyone else are filtered out by the kernel.
+  */
 
-    InetAddress dIP = null;
+  public boolean connect (SocketAddress peer) {
     try {
-      dIP = InetAddress.getByName(in.getPacketHeader().getDestIP());
-    } catch (UnknownHostException e) {
-      p.logError("unknown host at IP address");
-      System.exit(0);
+      channel.connect(peer);
+      connected = true;
+    } catch (IOException e) {
+      p.logError("could not connect socket to " + peer);
     }
+    return connected;
+  }
 
-    int dPort = in.getPacketHeader().getDestPort();
-    DatagramPacket toSend = new DatagramPacket(bytes, bytes.length, dIP, dPort);
+  private void prepare (RTPPacket in, Envelope envelope) {
+    ByteBuffer buff = envelope.buff;
+    buff.clear();
+    buff.position(STAMP_SIZE);
+    in.writeTo(buff);
 
-    return toSend;
-  }
+    int length = buff.position();
+    Stamp type = in.getStamp();
+    Checksum stamp = envelope.stamps[type.ordinal()];
+    stamp.reset();
+    stamp.update(envelope.bytes, STAMP_SIZE, length - STAMP_SIZE);
+    buff.putLong(0, type.seal(stamp.getValue()));
+
+    if(corrupted) corrupt(envelope.bytes, length);
 
-  private byte[] stamp (byte[] bytes) {
-    ByteBuffer buff = ByteBuffer.allocate(bytes.length + 8);
-    buff.putLong(getStamp(bytes))
-        .put(bytes);
     buff.flip();
-    byte[] toReturn = new byte[buff.remaining()];
-    buff.get(toReturn);
-    return toReturn;
   }
 
-  private long getStamp (byte[] bytes) {
-    Checksum stamp = new Adler32();
-    stamp.update(bytes, 0, bytes.length);
-    return stamp.getValue();
+  private static Checksum[] createStamps () {
+    Stamp[] types = Stamp.values();
+    Checksum[] stamps = new Checksum[types.length];
+    for(int i = 0; i < types.length; i++) stamps[i] = types[i].create();
+    return stamps;
+  }
+
+  /**
+  * sendNormal waits for room in a full socket send buffer instead of
+  * dropping the datagram
+  */
+
+  private void sendNormal (ByteBuffer toSend, SocketAddress to) {
+    while(!trySend(toSend, to)) Thread.yield();
   }
 
-  private void sendNormal (DatagramPacket toSend) {
+  /**
+  * trySend makes one attempt to send a datagram. A datagram that can never
+  * go, to a peer that is not listening or on a closed socket, counts as sent.
+  *
+  * Returns: false if the send buffer had no room for it
+  */
+
+  private boolean trySend (ByteBuffer toSend, SocketAddress to) {
     try {
-      socket.send(toSend);
+      if(connected) return channel.write(toSend) != 0;
+      return channel.send(toSend, to) != 0;
     }
-    catch (UnknownHostException e) {
-      Printer.error("Invalid Destination IP Address");
-      System.exit(0);
+    catch (PortUnreachableException e) {
+      p.logInfo("peer is not listening");
     }
     catch (IOException e) {
-      Printer.error(e.getMessage());
-      System.exit(0);
+      if(open) {
+        Printer.error(e.getMessage());
+        System.exit(0);
+      }
+    }
+    return true;
+  }
+
+  /**
+  * whenWritable runs task on the event loop once the socket's send buffer
+  * has room again, for a sender whose offer was refused
+  */
+
+  public void whenWritable (Runnable task) {
+    synchronized (writers) {
+      writers.add(task);
+      key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+    selector.wakeup();
+  }
+
+  private void runWriters () {
+    List<Runnable> ready;
+    synchronized (writers) {
+      key.interestOps(SelectionKey.OP_READ);
+      ready = new ArrayList<Runnable>(writers);
+      writers.clear();
     }
+    for(Runnable task: ready) task.run();
   }
 
   //============================================================================
   // Corrupted send methods
   //============================================================================
 
-  private void unreliableSend (DatagramPacket toSend) {
+  /**
+  * unreliableSend holds each datagram it does not drop for up to MAX_DELAY
+  * milliseconds on a timer rather than by sleeping, so the sending thread,
+  * often the event loop, is never stalled; datagrams may pass each other
+  */
+
+  private void unreliableSend (ByteBuffer toSend, SocketAddress to) {
     Random rand = new Random();
     int testVal = rand.nextInt(100);
     if(testVal <= 100 - CORRUPTION) {
-      randomDelay();
-      sendNormal(toSend);
+      ByteBuffer delayed = ByteBuffer.allocate(toSend.remaining());
+      delayed.put(toSend).flip();
+      schedule(rand.nextInt(MAX_DELAY), new Runnable() {@Override public void run() {
+        sendNormal(delayed, to);
+      }});
     } else {
       p.logCorruption("oh silly me, I dropped your packet");
     }
   }
 
-  private byte[] corrupt(byte[] bytes) {
+  private void corrupt(byte[] bytes, int length) {
     Random rand = new Random();
     int testVal = rand.nextInt(100);
-    if(testVal <= 100 - CORRUPTION) {
-      return bytes;
-    }
-    else {
+    if(testVal > 100 - CORRUPTION) {
       p.logCorruption("mailman wrote in your letter");
-      int indexToCorrupt = rand.nextInt(bytes.length - 1);
+      int indexToCorrupt = rand.nextInt(length - 1);
       bytes[indexToCorrupt] = 0;
-      return bytes;
-    }
-  }
-
-  public void randomDelay() {
-    Random rand = new Random();
-    try {
-      Thread.sleep(rand.nextInt(MAX_DELAY));
-    } catch(InterruptedException e) {
-      Printer.errorLn(e.getMessage());
     }
   }
 
@@ -142,45 +290,185 @@ public class Mailman {
   // Receive methods
   //============================================================================
 
-  public RTPPacket receive() {
-    try {
-      for (;;) {
-        byte[] receivedBytes = new byte[RTPPacket.MAX_SIZE];
-        DatagramPacket mail = new DatagramPacket(receivedBytes, RTPPacket.MAX_SIZE);
-        socket.receive(mail);
+  /**
+  * listen starts the event loop that delivers every undamaged packet to
+  * recipient. Packets come from a pool: recipients that consume a DATA or
+  * ACK should release() it afterwards so its frame can be received into
+  * again.
+  */
+
+  public void listen (Recipient recipient) {
+    new Thread(new Runnable() {@Override public void run() {
+      try {
+        while(open) {
+          boolean selected = selector.select(untilNextTimer()) > 0;
+          selector.selectedKeys().clear();
+          if(selected && key.isWritable()) runWriters();
+          drain(recipient);
+          runTimers();
+        }
+      }
+      catch (IOException | ClosedSelectorException e) {
+        if(open) {
+          Printer.errorLn("Mailman stopped receiving: " + e.getMessage());
+          System.exit(0);
+        }
+      }
+    }}).start();
+  }
+
+  /**
+  * drain receives until the socket has nothing more ready, so one wakeup
+  * handles a whole burst
+  */
+
+  private void drain (Recipient recipient) throws IOException {
+    for(;;) {
+      receiveAllocations.start();
+      if(spare == null) spare = pool.acquire();
+
+      RTPPacket packet = spare;
+      ByteBuffer frame = packet.getFrameBuffer();
+      frame.clear();
+      SocketAddress from;
+      try {
+        from = channel.receive(frame);
+      } catch (PortUnreachableException e) {
+        continue;
+      }
+      if(from == null) return;
 
-        RTPPacket packet = tossIfDamaged(receivedBytes);
-        if(packet != null) return packet;
+      spare = null;
+      InetAddress source = ((InetSocketAddress) from).getAddress();
+      if(tossIfDamaged(packet, frame.position(), source)) {
+        packet.release();
+        continue;
       }
+
+      receiveAllocations.stop();
+      recipient.deliver(packet);
     }
-    catch (IOException e) {
-      System.exit(0);
+  }
+
+  private boolean tossIfDamaged (RTPPacket packet, int length, InetAddress source) {
+    byte[] bytes = packet.getFrame();
+    if(length <= STAMP_SIZE) {
+      p.logCorruption("mailman lost part of the packet");
+      return true;
     }
-    return null;
+
+    long stamp = readStamp(bytes);
+
+    Stamp type = Stamp.fromStamp(stamp);
+    if(type == null) {
+      p.logInfo("mailman tossed damaged mail");
+      return true;
+    }
+
+    Checksum check = receiveStamps[type.ordinal()];
+    check.reset();
+    check.update(bytes, STAMP_SIZE, length - STAMP_SIZE);
+    if(stamp != type.seal(check.getValue())) {
+      p.logInfo("mailman tossed damaged mail");
+      return true;
+    }
+
+    if(!packet.open(STAMP_SIZE, length, source)) {
+      p.logCorruption("mailman lost part of the packet");
+      return true;
+    }
+    return false;
+  }
+
+  private static long readStamp (byte[] bytes) {
+    long stamp = 0;
+    for(int i = 0; i < STAMP_SIZE; i++) stamp = (stamp << 8) | (bytes[i] & 0xFF);
+    return stamp;
   }
 
-  private RTPPacket tossIfDamaged (byte[] bytes) {
+  /**
+  * getReceiveAllocations reports the bytes the receive path allocated per
+  * packet, for confirming the pool keeps steady-state receiving garbage free
+  */
+
+  public AllocationCounter getReceiveAllocations () { return receiveAllocations; }
+
+  public void fire () {
+    p.logInfo("received " + receiveAllocations.getEvents() + " packets, " +
+              (long) receiveAllocations.bytesPerEvent() + " bytes allocated per packet, " +
+              pool.getCreated() + " frames created");
+    open = false;
     try {
-      RTPPacket opened = new RTPPacket();
+      selector.close();
+      channel.close();
+    } catch (IOException e) {
+      p.logError("could not close socket");
+    }
+  }
 
-      ByteBuffer buff = ByteBuffer.wrap(bytes);
-      long stamp = buff.getLong();
+  //============================================================================
+  // Timers
+  //============================================================================
 
-      byte[] withoutStamp = new byte[buff.remaining()];
-      buff.get(withoutStamp);
-      opened.buildFromBytes(withoutStamp);
+  /**
+  * schedule runs task on the event loop once delay milliseconds have passed.
+  * Tasks run between receive bursts, so like recipients they must not block.
+  */
+
+  public void schedule (long delay, Runnable task) {
+    Timer timer = new Timer(System.nanoTime() + delay * 1000000L, task);
+    boolean first;
+    synchronized (timers) {
+      timers.add(timer);
+      first = (timers.peek() == timer);
+    }
+    if(first) selector.wakeup();
+  }
 
-      if(stamp == getStamp(opened.toBytes())) return opened;
+  private long untilNextTimer () {
+    synchronized (timers) {
+      Timer next = timers.peek();
+      if(next == null) return 0;
+      long wait = (next.due - System.nanoTime()) / 1000000L;
+      return Math.max(wait, 1);
+    }
+  }
 
-      p.logInfo("mailman tossed damaged mail");
-      return null;
-   }
-   catch (BufferOverflowException e) {
-      p.logCorruption("mailman lost part of the packet");
-      return null;
-   }
+  private void runTimers () {
+    long now = System.nanoTime();
+    for(;;) {
+      Timer due;
+      synchronized (timers) {
+        Timer next = timers.peek();
+        if(next == null || next.due - now > 0) return;
+        due = timers.poll();
+      }
+      due.task.run();
+    }
   }
 
-  public void fire () { socket.close(); }
+  private static class Timer implements Comparable<Timer> {
+    final long due;
+    final Runnable task;
+
+    Timer(long due, Runnable task) {
+      this.due = due;
+      this.task = task;
+    }
 
+    @Override
+    public int compareTo(Timer other) {
+      return Long.compare(due - other.due, 0);
+    }
+  }
+
+  //============================================================================
+  // Per-thread send state
+  //============================================================================
+
+  private static class Envelope {
+    final byte[] bytes = new byte[MAX_DATAGRAM];
+    final ByteBuffer buff = ByteBuffer.wrap(bytes);
+    final Checksum[] stamps = createStamps();
+  }
 }
@@ -0,0 +1,113 @@
+package util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * MappedFiles serves files as read-only memory mappings instead of reading
+ * them onto the heap. Mappings are cached per path, so concurrent downloads
+ * of the same file share one mapping (and the page cache behind it); a file
+ * that has been replaced, or has changed size or modification time, since
+ * it was mapped is mapped again. Files over Payload.REGION_SIZE are mapped
+ * as several overlapping regions, so there is no 2 GB limit.
+ *
+ * The cache holds at most MAX_FILES mappings and MAX_BYTES mapped bytes,
+ * dropping the least recently served first. A dropped mapping is unmapped
+ * once the transfers still reading it let it go.
+ */
+
+public class MappedFiles {
+
+  public static final int MAX_FILES = 64;
+  public static final long MAX_BYTES = 1L << 30;
+
+  private static final LinkedHashMap<Path, Mapping> mappings =
+    new LinkedHashMap<Path, Mapping>(16, 0.75f, true);
+  private static long mappedBytes;
+
+  /**
+  * map returns a read-only payload over the whole file, or null if the file
+  * can't be read
+  *
+  * Parameters: Path
+  * Returns: Payload
+  */
+
+  public static Payload map(Path path) {
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+      synchronized(mappings) {
+        Mapping cached = mappings.get(path);
+        if(cached != null && cached.matches(attributes)) return cached.payload;
+      }
+
+      Mapping mapping = new Mapping(open(path, attributes.size()), attributes);
+      cache(path, mapping);
+      return mapping.payload;
+    }
+    catch (IOException e) {
+      Printer.errorLn("Could not map file " + path);
+      return null;
+    }
+  }
+
+  /**
+  * cache files a new mapping and drops the least recently served ones until
+  * the cache is back within its bounds; the newest is always kept
+  */
+
+  private static void cache(Path path, Mapping mapping) {
+    synchronized(mappings) {
+      Mapping replaced = mappings.put(path, mapping);
+      if(replaced != null) mappedBytes -= replaced.size;
+      mappedBytes += mapping.size;
+
+      Iterator<Mapping> eldest = mappings.values().iterator();
+      while(mappings.size() > 1 && (mappings.size() > MAX_FILES || mappedBytes > MAX_BYTES)) {
+        mappedBytes -= eldest.next().size;
+        eldest.remove();
+      }
+    }
+  }
+
+  private static Payload open(Path path, long size) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      if(size <= Integer.MAX_VALUE)
+        return Payload.wrap(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+
+      int count = (int) ((size + Payload.REGION_SIZE - 1) / Payload.REGION_SIZE);
+      ByteBuffer[] regions = new ByteBuffer[count];
+      for(int i = 0; i < count; i++) {
+        long start = (long) i * Payload.REGION_SIZE;
+        long length = Math.min(size - start, Payload.REGION_SIZE + Payload.OVERLAP);
+        regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+      }
+      return new Payload(regions, Payload.REGION_SIZE, size);
+    }
+  }
+
+  private static class Mapping {
+    final Payload payload;
+    final long size;
+    final FileTime modified;
+    final Object fileKey;
+
+    Mapping(Payload payload, BasicFileAttributes attributes) {
+      this.payload = payload;
+      this.size = attributes.size();
+      this.modified = attributes.lastModifiedTime();
+      this.fileKey = attributes.fileKey();
+    }
+
+    boolean matches(BasicFileAttributes attributes) {
+      return size == attributes.size() && modified.equals(attributes.lastModifiedTime())
+          && (fileKey == null || fileKey.equals(attributes.fileKey()));
+    }
+  }
+}
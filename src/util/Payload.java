@@ -0,0 +1,59 @@
+package util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Payload is a read-only run of bytes that may be longer than one ByteBuffer
+ * can address. Large files are mapped as a series of regions that each
+ * overlap the next by a full datagram, so any segment that starts in a region
+ * ends in it too and can always be handed out as a zero-copy slice.
+ */
+
+public class Payload {
+
+  public static final int REGION_SIZE = 1 << 30;
+  public static final int OVERLAP = Mailman.MAX_DATAGRAM;
+
+  private final ByteBuffer[] regions;
+  private final int regionSize;
+  private final long length;
+
+  Payload(ByteBuffer[] regions, int regionSize, long length) {
+    this.regions = regions;
+    this.regionSize = regionSize;
+    this.length = length;
+  }
+
+  /**
+  * wrap views the remaining bytes of a single buffer as a payload
+  */
+
+  public static Payload wrap(ByteBuffer buff) {
+    ByteBuffer region = buff.slice();
+    return new Payload(new ByteBuffer[] { region }, Integer.MAX_VALUE, region.remaining());
+  }
+
+  public static Payload wrap(byte[] bytes) {
+    return wrap(ByteBuffer.wrap(bytes));
+  }
+
+  public long length() { return this.length; }
+
+  /**
+  * slice returns the bytes at [offset, offset + size) without copying them.
+  * size must not exceed OVERLAP unless the payload is a single region.
+  *
+  * Parameters: offset into the payload, number of bytes
+  * Returns: ByteBuffer
+  */
+
+  public ByteBuffer slice(long offset, int size) {
+    int index = (int) (offset / regionSize);
+    int start = (int) (offset - (long) index * regionSize);
+
+    ByteBuffer region = regions[index].duplicate();
+    region.limit(start + size);
+    region.position(start);
+    return region.slice();
+  }
+}
@@ -25,7 +25,7 @@ public class Printer {
     if(logging) sendLn(s);
   }
 
-  public void logSend (String s, int n) {
+  public void logSend (String s, long n) {
     if(!logging) return;
     send(s + "\t");
     infoLn(n);
@@ -35,7 +35,7 @@ public class Printer {
     if(logging) recvLn(s);
   }
 
-  public void logReceive (String s, int n) {
+  public void logReceive (String s, long n) {
     if(!logging) return;
     recv(s);
     infoLn("\tTotal bytes: " + n);
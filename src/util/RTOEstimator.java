@@ -0,0 +1,83 @@
+package util;
+
+/**
+ * RTOEstimator keeps a connection's smoothed round trip time and the
+ * retransmission timeout derived from it, as RFC 6298 describes:
+ *
+ *   first sample R:  SRTT = R, RTTVAR = R/2
+ *   later samples:   RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R|
+ *                    SRTT   = 7/8 SRTT   + 1/8 R
+ *   RTO = SRTT + max(G, 4 RTTVAR), kept within [MIN_RTO, MAX_RTO]
+ *
+ * Samples are in nanoseconds. Callers follow Karn's rule and never sample a
+ * packet that was sent more than once, since its ACK could answer any copy.
+ */
+
+public class RTOEstimator {
+
+  /**
+  * Bounds and defaults in milliseconds. Until the first sample the RTO is
+  * INITIAL_RTO and the RTT is taken to be DEFAULT_RTT.
+  */
+
+  public static final long MIN_RTO = 50;
+  public static final long MAX_RTO = 60000;
+  public static final long INITIAL_RTO = 1000;
+  public static final long DEFAULT_RTT = 200;
+
+  private static final long NANOS = 1000000L;
+  private static final long GRANULARITY = NANOS;
+
+  private long srtt, rttvar, rto;
+  private boolean measured;
+
+  public RTOEstimator() {
+    this.rto = INITIAL_RTO * NANOS;
+  }
+
+  /**
+  * sample folds one round trip measurement into the estimate
+  *
+  * Parameters: round trip time in nanoseconds
+  * Returns: -
+  */
+
+  public synchronized void sample(long rtt) {
+    if(rtt <= 0) rtt = 1;
+
+    if(!measured) {
+      srtt = rtt;
+      rttvar = rtt / 2;
+      measured = true;
+    }
+    else {
+      rttvar = rttvar - (rttvar >> 2) + (Math.abs(srtt - rtt) >> 2);
+      srtt = srtt - (srtt >> 3) + (rtt >> 3);
+    }
+
+    long timeout = srtt + Math.max(GRANULARITY, 4 * rttvar);
+    rto = Math.max(MIN_RTO * NANOS, Math.min(timeout, MAX_RTO * NANOS));
+  }
+
+  /**
+  * getRTO returns the retransmission timeout in milliseconds
+  */
+
+  public synchronized long getRTO() { return rto / NANOS; }
+
+  /**
+  * getRTT returns the smoothed round trip time in milliseconds, or
+  * DEFAULT_RTT before the first sample
+  */
+
+  public synchronized long getRTT() {
+    if(!measured) return DEFAULT_RTT;
+    return Math.max(srtt / NANOS, 1);
+  }
+
+  public synchronized long getRTTVar() { return rttvar / NANOS; }
+
+  public String toString() {
+    return "SRTT " + getRTT() + "ms, RTTVAR " + getRTTVar() + "ms, RTO " + getRTO() + "ms";
+  }
+}
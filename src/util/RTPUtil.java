@@ -4,6 +4,8 @@ import java.net.*;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.BufferOverflowException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
 
 import java.util.*;
 import java.nio.file.*;
@@ -39,37 +41,41 @@ public class RTPUtil {
     }
   }
 
-  public static DatagramSocket openSocket(int sPort, String sIP) {
+  public static DatagramChannel openChannel(int sPort, String sIP) {
+    return openChannel(sPort, sIP, false);
+  }
+
+  /**
+  * openChannel binds a non-blocking channel. With sharedPort set several
+  * channels may bind the same port (SO_REUSEPORT) and the kernel spreads
+  * peers across them, always sending a given peer to the same channel.
+  */
+
+  public static DatagramChannel openChannel(int sPort, String sIP, boolean sharedPort) {
     try {
-      return new DatagramSocket(sPort, InetAddress.getByName(sIP));
-    }
-    catch (SocketException e) {
-      Printer.errorLn("Invalid Port Address");
-      System.exit(0);
+      DatagramChannel channel = DatagramChannel.open();
+      if(sharedPort) channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+      channel.bind(new InetSocketAddress(InetAddress.getByName(sIP), sPort));
+      channel.configureBlocking(false);
+      return channel;
     }
     catch (UnknownHostException e) {
       Printer.errorLn("Invalid IP Address");
       System.exit(0);
     }
+    catch (IOException e) {
+      Printer.errorLn("Invalid Port Address");
+      System.exit(0);
+    }
     return null;
   }
 
-  public static byte[][] splitData(byte[] data) {
-    int size = RTPPacket.MAX_SIZE - 100, n = (data.length)/size,
-        remainder = data.length - (n*size), packets = (remainder > 0) ? n+1 : n;
-
-    byte[][] toReturn = new byte[packets][];
-    ByteBuffer buff = ByteBuffer.wrap(data);
-
-    for(int i = 0; i < packets; i++) {
-      byte[] toInsert;
-      if(i == packets - 1) toInsert = new byte[data.length - size*(packets-1)];
-      else toInsert = new byte[size];
-      buff.get(toInsert);
-      toReturn[i] = toInsert;
+  public static boolean canSharePort() {
+    try (DatagramChannel channel = DatagramChannel.open()) {
+      return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+    } catch (IOException e) {
+      return false;
     }
-
-    return toReturn;
   }
 
   public static void delay() {
@@ -119,6 +125,17 @@ public class RTPUtil {
     }
   }
 
+  /**
+  * mapFile returns a shared read-only mapping of a file for serving, or
+  * null if it does not exist
+  */
+
+  public static Payload mapFile(String filename, String pathway) {
+    Path path = Paths.get(pathway + filename);
+    if(!Files.isRegularFile(path)) return null;
+    return MappedFiles.map(path);
+  }
+
   public static byte[] getFileBytes(String filename, String pathway) {
     try {
       Path path = Paths.get(pathway + filename);
@@ -129,27 +146,34 @@ public class RTPUtil {
     }
   }
 
-  public static void createGETFile(byte[] data) {
+  /**
+  * openOutput opens a file for positional writes, creating it or
+  * truncating an old one, or returns null if that is not possible
+  */
+
+  public static FileChannel openOutput(Path path) {
     try {
-      Path path = Paths.get("src/fta/output/get_F.jpg");
-      Files.write(path, data);
-      p.logStatus("created file at src/fta/output/get_F.jpg");
-    }
-    catch (IOException e) {
-      Printer.errorLn("Could not create file.");
-      e.printStackTrace();
+      return FileChannel.open(path, StandardOpenOption.CREATE,
+                                    StandardOpenOption.WRITE,
+                                    StandardOpenOption.TRUNCATE_EXISTING);
+    } catch (IOException e) {
+      Printer.errorLn("Could not create file " + path);
+      return null;
     }
   }
 
-  public static void createPOSTFile(byte[] data) {
+  /**
+  * createPart creates an empty, uniquely named ".part" file beside path for
+  * one transfer to write into, or returns null if that is not possible
+  */
+
+  public static Path createPart(Path path) {
+    Path dir = path.toAbsolutePath().getParent();
     try {
-      Path path = Paths.get("src/fta/output/post_G.jpg");
-      Files.write(path, data);
-      p.logStatus("created file at src/fta/output/post_G.jpg");
-    }
-    catch (IOException e) {
-      Printer.errorLn("Could not create file.");
-      e.printStackTrace();
+      return Files.createTempFile(dir, path.getFileName() + ".", ".part");
+    } catch (IOException e) {
+      Printer.errorLn("Could not create a part file in " + dir);
+      return null;
     }
   }
 
@@ -173,23 +197,6 @@ public class RTPUtil {
     }
   }
 
-  public static byte[] buildDataFromHash(int totalBytes, HashMap<Integer, RTPPacket> packets) {
-    Object[] seqNums = packets.keySet().toArray();
-    Arrays.sort(seqNums);
-
-    ByteBuffer buff = ByteBuffer.allocate(totalBytes);
-    byte[] toReturn = new byte[totalBytes];
-
-    for(Object seqNum: seqNums) {
-      byte[] data = packets.get((int) seqNum).getData();
-      buff.put(data);
-    }
-
-    buff.flip();
-    buff.get(toReturn);
-    return toReturn;
-  }
-
   public static byte[] longToByte (long l) {
     ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
     buffer.putLong(l);
@@ -0,0 +1,101 @@
+package util;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * RangeSet records which byte ranges of a transfer have arrived. Adjacent and
+ * overlapping ranges are merged as they are added, so an in-order transfer is
+ * tracked by a single entry however large it gets.
+ */
+
+public class RangeSet {
+
+  private final TreeMap<Long, Long> ranges = new TreeMap<Long, Long>();
+  private long covered;
+
+  /**
+  * add marks [start, end) as received
+  *
+  * Parameters: first byte, one past the last byte
+  * Returns: number of bytes that were not already covered
+  */
+
+  public synchronized long add(long start, long end) {
+    if(end <= start) return 0;
+    long before = covered;
+
+    Map.Entry<Long, Long> floor = ranges.floorEntry(start);
+    if(floor != null && floor.getValue() >= start) {
+      if(floor.getValue() >= end) return 0;
+      start = floor.getKey();
+      end = Math.max(end, floor.getValue());
+      remove(floor);
+    }
+
+    Map.Entry<Long, Long> next = ranges.ceilingEntry(start);
+    while(next != null && next.getKey() <= end) {
+      end = Math.max(end, next.getValue());
+      remove(next);
+      next = ranges.ceilingEntry(start);
+    }
+
+    ranges.put(start, end);
+    covered += end - start;
+    return covered - before;
+  }
+
+  public synchronized boolean contains(long point) {
+    Map.Entry<Long, Long> floor = ranges.floorEntry(point);
+    return floor != null && point < floor.getValue();
+  }
+
+  /**
+  * reach returns where the run of received bytes at from ends, or from
+  * itself if that byte has not been received
+  *
+  * Parameters: long
+  * Returns: long
+  */
+
+  public synchronized long reach(long from) {
+    Map.Entry<Long, Long> floor = ranges.floorEntry(from);
+    return (floor != null && from < floor.getValue()) ? floor.getValue() : from;
+  }
+
+  /**
+  * blocks lists the ranges that start beyond from as start/end pairs. The
+  * range holding first goes first, the rest follow in order, and no more
+  * than fit in out are listed.
+  *
+  * Parameters: long from, long first, long[] out
+  * Returns: number of ranges listed
+  */
+
+  public synchronized int blocks(long from, long first, long[] out) {
+    int count = 0;
+    Map.Entry<Long, Long> lead = ranges.floorEntry(first);
+    if(lead != null && lead.getKey() > from && first < lead.getValue()) {
+      out[0] = lead.getKey();
+      out[1] = lead.getValue();
+      count++;
+    }
+    else lead = null;
+
+    for(Map.Entry<Long, Long> range: ranges.tailMap(from, false).entrySet()) {
+      if(2 * count + 1 >= out.length) break;
+      if(lead != null && range.getKey().equals(lead.getKey())) continue;
+      out[2 * count] = range.getKey();
+      out[2 * count + 1] = range.getValue();
+      count++;
+    }
+    return count;
+  }
+
+  public synchronized int size() { return ranges.size(); }
+
+  private void remove(Map.Entry<Long, Long> range) {
+    ranges.remove(range.getKey());
+    covered -= range.getValue() - range.getKey();
+  }
+}
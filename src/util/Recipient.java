@@ -0,0 +1,14 @@
+package util;
+
+import rtpPacket.*;
+
+/**
+ * Recipient is handed every undamaged packet a Mailman receives. deliver()
+ * runs on the mailman's event loop, so it must not block: anything slow
+ * belongs on another thread or in a timer.
+ */
+
+public interface Recipient {
+
+  void deliver(RTPPacket mail);
+}
@@ -0,0 +1,25 @@
+package util;
+
+/**
+ * Serial holds the serial number arithmetic (RFC 1982) for the 32-bit
+ * sequence numbers carried on the wire. Logical sequence numbers and file
+ * offsets are 64-bit; only their low 32 bits are sent, and the receiver
+ * recovers the rest from the nearest value it already knows. That is exact
+ * as long as fewer than 2^31 bytes are in flight, which any window is.
+ */
+
+public class Serial {
+
+  /**
+  * extend returns the 64-bit value whose low 32 bits are wire and that lies
+  * closest to reference
+  *
+  * Parameters: sequence number from the wire, known 64-bit value near it
+  * Returns: long
+  */
+
+  public static long extend(int wire, long reference) {
+    long value = reference + (wire - (int) reference);
+    return (value < 0) ? value + (1L << 32) : value;
+  }
+}
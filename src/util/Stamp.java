@@ -0,0 +1,51 @@
+package util;
+
+import java.util.zip.Adler32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * Stamp lists the checksums Mailman can stamp a datagram with. The 8-byte
+ * stamp carries the checksum in its low 32 bits and the Stamp ordinal in
+ * its high 32 bits, so an Adler32 stamp (ordinal 0) is exactly the stamp
+ * older peers send and expect.
+ */
+
+public enum Stamp {
+  ADLER32, CRC32C;
+
+  public Checksum create() {
+    switch (this) {
+      case CRC32C: return new CRC32C();
+      default:     return new Adler32();
+    }
+  }
+
+  public int mask() { return 1 << ordinal(); }
+
+  public long seal(long checksum) {
+    return ((long) ordinal() << 32) | (checksum & 0xFFFFFFFFL);
+  }
+
+  public static int supported() {
+    int mask = 0;
+    for(Stamp s : values()) mask |= s.mask();
+    return mask;
+  }
+
+  public static Stamp fromStamp(long stamp) {
+    int id = (int) (stamp >>> 32);
+    if(id < 0 || id >= values().length) return null;
+    return values()[id];
+  }
+
+  /**
+  * choose picks the preferred stamp both sides support, falling back to the
+  * Adler32 every peer understands.
+  */
+
+  public static Stamp choose(int mask) {
+    if((mask & CRC32C.mask()) != 0) return CRC32C;
+    return ADLER32;
+  }
+}
@@ -1,5 +1,5 @@
 package util;
 
 public enum State {
-  SYN, SYNACK, SYNFIN, GET, DATA, DATAFIN, ACK, FIN, FINACK, END
+  SYN, SYNACK, SYNFIN, GET, DATA, DATAFIN, ACK, FIN, FINACK, END, PROBE
 }
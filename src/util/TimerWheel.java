@@ -0,0 +1,118 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * TimerWheel is a hashed timing wheel of deadlines keyed by a long. Each
+ * deadline is filed in the slot its tick hashes to, so scheduling is constant
+ * time and each tick only looks at one slot, however many timers are
+ * pending. A timer more than one revolution away simply stays in its slot
+ * until the wheel comes round to it at the right time.
+ *
+ * The wheel keeps no clock of its own: whoever owns it calls advance() with
+ * the current time, at least once a tick. Timers can't be cancelled; an
+ * Expiry should check whether its key still needs it.
+ */
+
+public class TimerWheel {
+
+  public interface Expiry {
+    void expired(long key);
+  }
+
+  private final long tick;
+  private final Slot[] slots;
+  private final Expiry expiry;
+
+  private long current;
+  private long[] due = new long[64];
+
+  /**
+  * Parameters: number of slots, milliseconds per tick, what to call as each
+  *             timer expires
+  */
+
+  public TimerWheel(int slotCount, long tick, Expiry expiry) {
+    this.tick = tick;
+    this.slots = new Slot[slotCount];
+    for(int i = 0; i < slotCount; i++) slots[i] = new Slot();
+    this.expiry = expiry;
+    this.current = -1;
+  }
+
+  /**
+  * schedule files key to expire delay milliseconds from now
+  *
+  * Parameters: long key, delay in milliseconds, current time in milliseconds
+  * Returns: -
+  */
+
+  public synchronized void schedule(long key, long delay, long now) {
+    if(current < 0) current = now / tick;
+    long deadline = now + Math.max(delay, 0);
+    long at = Math.max((deadline + tick - 1) / tick, current + 1);
+    slots[(int) (at % slots.length)].add(key, deadline);
+  }
+
+  /**
+  * advance expires every timer whose deadline has passed by now. Expiry is
+  * called outside the wheel's lock, so it may schedule again.
+  *
+  * Parameters: current time in milliseconds
+  * Returns: -
+  */
+
+  public void advance(long now) {
+    int count = 0;
+    synchronized(this) {
+      if(current < 0) return;
+      long target = now / tick;
+      long last = Math.min(target, current + slots.length);
+      for(long t = current + 1; t <= last; t++)
+        count = slots[(int) (t % slots.length)].expire(now, this, count);
+      current = Math.max(current, target);
+    }
+    for(int i = 0; i < count; i++) expiry.expired(due[i]);
+  }
+
+  private int collect(long key, int count) {
+    if(count == due.length) due = Arrays.copyOf(due, 2 * count);
+    due[count] = key;
+    return count + 1;
+  }
+
+  /**
+  * Slot holds its timers in parallel arrays, so filing one allocates nothing
+  * once the slot has grown to its working size
+  */
+
+  private static class Slot {
+    long[] keys = new long[8];
+    long[] deadlines = new long[8];
+    int size;
+
+    void add(long key, long deadline) {
+      if(size == keys.length) {
+        keys = Arrays.copyOf(keys, 2 * size);
+        deadlines = Arrays.copyOf(deadlines, 2 * size);
+      }
+      keys[size] = key;
+      deadlines[size] = deadline;
+      size++;
+    }
+
+    int expire(long now, TimerWheel wheel, int count) {
+      int kept = 0;
+      for(int i = 0; i < size; i++) {
+        if(deadlines[i] <= now) count = wheel.collect(keys[i], count);
+        else {
+          keys[kept] = keys[i];
+          deadlines[kept] = deadlines[i];
+          kept++;
+        }
+      }
+      size = kept;
+      return count;
+    }
+  }
+}